@@ -8,78 +8,397 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
+import android.view.Gravity;
 import android.view.Surface;
 import android.view.TextureView;
+import android.widget.FrameLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
+import com.facebook.camapp.utils.AnalysisStage;
 import com.facebook.camapp.utils.CameraSource;
+import com.facebook.camapp.utils.ConvergenceStateMachine;
 import com.facebook.camapp.utils.FpsMeasure;
+import com.facebook.camapp.utils.FrameDropDetector;
+import com.facebook.camapp.utils.FrameswapControl;
+import com.facebook.camapp.utils.GpuTimer;
+import com.facebook.camapp.utils.LatencyHistogram;
+import com.facebook.camapp.utils.LumaAnalyzer;
+import com.facebook.camapp.utils.MatrixRunner;
+import com.facebook.camapp.utils.OutageLog;
 import com.facebook.camapp.utils.OutputMultiplier;
+import com.facebook.camapp.utils.ParameterSweep;
+import com.facebook.camapp.utils.ParameterUpdate;
+import com.facebook.camapp.utils.RegistryBenchmark;
+import com.facebook.camapp.utils.StartupTimeline;
 
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-public class MainActivity extends Activity implements TextureView.SurfaceTextureListener, SeekBar.OnSeekBarChangeListener {
+public class MainActivity extends Activity implements SeekBar.OnSeekBarChangeListener {
     final static String TAG = "camapp.main";
 
     TextureView mTextureView;
-    SurfaceTexture mSurfaceTexture;
-    Surface mSurface;
     TextView mDataText;
-    OutputMultiplier mOutputMult;
-    CameraSource mCamera;
+    FrameLayout mLayout;
     float mFps = 30.0f;
     int mSensitivityTarget = -1;
     int mFrameDurationTargetUsec = -1;
     int mFrameExposureTimeTargetUsec = -1;
+    // Comma separated list of camera ids. "logical:physical" selects a physical camera
+    // behind a logical one. Default is the first camera.
+    String mCameraIds = null;
+    // Constrained high speed (slow motion) capture at mFps
+    boolean mHighSpeed = false;
+    // Per-frame sweep of iso/exp_usec/dur_usec, e.g. "iso:100,200,400"
+    String mSweep = null;
+    // The camera writes straight into the views, no GL multiplier. Views of the same camera
+    // share one stream.
+    boolean mSurfaceSharing = false;
+    // Open the camera and configure the session before the preview and GL are ready, the
+    // multiplier input surface is added to the running session when it exists
+    boolean mDeferredSurface = true;
+    // Reopen the camera after a disconnect or error
+    boolean mRecovery = true;
+    // 10-bit GL path (RGBA1010102 EGL surfaces, highp program)
+    boolean mTenBit = false;
+    // Extra multiplier outputs draw on their own threads
+    boolean mThreadedOutputs = false;
+    // android.os.Process priorities of the camera callback threads
+    int mResultPriority = Process.THREAD_PRIORITY_DISPLAY;
+    int mControlPriority = Process.THREAD_PRIORITY_FOREGROUND;
+    // GPU time of every multiplier output
+    boolean mGpuTiming = false;
+    // Rotate and letterbox the preview in the multiplier blit instead of the View transform
+    boolean mGlTransform = false;
+    // Rate policy of the preview outputs, e.g. "fps:15" or "nth:4"
+    String mOutputRate = null;
+    // Seconds per phase of the output add/remove benchmark on the first camera, 0 for none
+    int mRegistryBenchSec = 0;
+    // CPU luma analysis of the first camera, as its own client, e.g. "640x480"
+    String mAnalysisSize = null;
+    CameraSource.Client mAnalysisClient = null;
+    AnalysisStage mAnalysisStage = null;
+    // Analyze every 4th pixel of every 4th row
+    final static int ANALYSIS_STEP = 4;
+    // Runs the size x format x fps matrix instead of a preview, e.g. "yuv,private"
+    String mMatrixFormats = null;
+    String mMatrixFps = null;
+    String mMatrixMaxSize = null;
+    int mMatrixDurationSec = 5;
+    StartupTimeline mMatrixTimeline = null;
+    final Vector<CameraStream> mStreams = new Vector<>();
+    // Runs the startup steps chained on the stream timelines
+    final Executor mStartupExecutor = Executors.newSingleThreadExecutor();
+    final static int REQUEST_ALL_PERMISSIONS = 0x4562;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mLayout = findViewById(R.id.hor);
         mTextureView = findViewById(R.id.cameraView);
         mDataText = findViewById(R.id.dataText);
         String[] permissions = retrieveNotGrantedPermissions(this);
 
         if (permissions != null && permissions.length > 0) {
-            int REQUEST_ALL_PERMISSIONS = 0x4562;
             ActivityCompat.requestPermissions(this, permissions, REQUEST_ALL_PERMISSIONS);
         }
         Intent intent = getIntent();
         Bundle bundle = intent.getExtras();
         if (bundle != null) {
             Log.d(TAG, "Have extra settings");
-            if (bundle.containsKey("fps")) {
-                mFps = Float.parseFloat(bundle.getString("fps"));
+            parseCaptureSettings(bundle);
+            if (bundle.containsKey("cameras")) {
+                mCameraIds = bundle.getString("cameras");
             }
-            if (bundle.containsKey("iso")) {
-                mSensitivityTarget = Integer.parseInt(bundle.getString("iso"));
+            if (bundle.containsKey("high_speed")) {
+                mHighSpeed = parseBoolean(bundle.getString("high_speed"));
             }
-            if (bundle.containsKey("exp_usec")) {
-                mFrameExposureTimeTargetUsec = Integer.parseInt(bundle.getString("exp_usec"));
+            if (bundle.containsKey("sweep")) {
+                mSweep = bundle.getString("sweep");
             }
-            if (bundle.containsKey("dur_usec")) {
-                mFrameDurationTargetUsec = Integer.parseInt(bundle.getString("dur_usec"));
+            if (bundle.containsKey("surface_sharing")) {
+                mSurfaceSharing = parseBoolean(bundle.getString("surface_sharing"));
             }
+            if (bundle.containsKey("deferred_surface")) {
+                mDeferredSurface = parseBoolean(bundle.getString("deferred_surface"));
+            }
+            if (bundle.containsKey("recovery")) {
+                mRecovery = parseBoolean(bundle.getString("recovery"));
+            }
+            if (bundle.containsKey("result_priority")) {
+                mResultPriority = Integer.parseInt(bundle.getString("result_priority"));
+            }
+            if (bundle.containsKey("control_priority")) {
+                mControlPriority = Integer.parseInt(bundle.getString("control_priority"));
+            }
+            if (bundle.containsKey("ten_bit")) {
+                mTenBit = parseBoolean(bundle.getString("ten_bit"));
+            }
+            if (bundle.containsKey("threaded_outputs")) {
+                mThreadedOutputs = parseBoolean(bundle.getString("threaded_outputs"));
+            }
+            if (bundle.containsKey("gpu_timing")) {
+                mGpuTiming = parseBoolean(bundle.getString("gpu_timing"));
+            }
+            if (bundle.containsKey("gl_transform")) {
+                mGlTransform = parseBoolean(bundle.getString("gl_transform"));
+            }
+            if (bundle.containsKey("output_rate")) {
+                mOutputRate = bundle.getString("output_rate");
+            }
+            if (bundle.containsKey("registry_bench")) {
+                mRegistryBenchSec = Integer.parseInt(bundle.getString("registry_bench"));
+            }
+            if (bundle.containsKey("analysis")) {
+                mAnalysisSize = bundle.getString("analysis");
+            }
+            if (bundle.containsKey("matrix")) {
+                mMatrixFormats = bundle.getString("matrix");
+            }
+            if (bundle.containsKey("matrix_fps")) {
+                mMatrixFps = bundle.getString("matrix_fps");
+            }
+            if (bundle.containsKey("matrix_max_size")) {
+                mMatrixMaxSize = bundle.getString("matrix_max_size");
+            }
+            if (bundle.containsKey("matrix_duration_sec")) {
+                mMatrixDurationSec = Integer.parseInt(bundle.getString("matrix_duration_sec"));
+            }
+        }
+
+        String[] cameraIds;
+        if (mCameraIds != null) {
+            cameraIds = mCameraIds.split(",");
+        } else {
+            String[] cameraIdList = CameraSource.getCameraIdList(this);
+            if (cameraIdList == null || cameraIdList.length == 0) {
+                Log.e(TAG, "No camera available");
+                return;
+            }
+            cameraIds = new String[]{cameraIdList[0]};
+        }
+        if (mMatrixFormats != null) {
+            startMatrix(cameraIds[0].trim().split(":")[0]);
+            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+                markPermissionGranted();
+            }
+            return;
+        }
+        HashSet<String> logicalIds = new HashSet<>();
+        int displayWidth = getResources().getDisplayMetrics().widthPixels;
+        int displayHeight = getResources().getDisplayMetrics().heightPixels;
+        for (int i = 0; i < cameraIds.length; i++) {
+            String[] ids = cameraIds[i].trim().split(":");
+            String physicalId = (ids.length > 1) ? ids[1] : null;
+            logicalIds.add(ids[0]);
+            TextureView view = (i == 0) ? mTextureView : addSecondaryView(i, cameraIds.length);
+            // The views are not laid out yet, this is the size they will get
+            Size viewSize = (i == 0) ? new Size(displayWidth, displayHeight) :
+                    new Size(displayWidth / 3, displayHeight / 3);
+            mStreams.add(new CameraStream(ids[0], physicalId, view, viewSize));
+        }
+        if (!CameraSource.isConcurrentCombinationSupported(this, logicalIds)) {
+            Log.w(TAG, "Camera combination " + logicalIds + " is not reported as concurrent, opening anyway");
         }
-        final  TextureView.SurfaceTextureListener listener = this;
+        if (mAnalysisSize != null && !mHighSpeed) {
+            startAnalysis(mStreams.get(0).mCameraId);
+        }
+        if (mDeferredSurface && !mSurfaceSharing && !mHighSpeed) {
+            for (CameraStream stream : mStreams) {
+                stream.openDeferred();
+            }
+        }
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            markPermissionGranted();
+        }
+
         Thread t = new Thread(new Runnable() {
             @Override
             public void run() {
-                mTextureView.setSurfaceTextureListener(listener);
+                for (CameraStream stream : mStreams) {
+                    stream.mView.setSurfaceTextureListener(stream);
+                }
             }
         });
         t.start();
 
     }
 
+    // Settings that can be changed on a running session
+    private void parseCaptureSettings(Bundle bundle) {
+        if (bundle.containsKey("fps")) {
+            mFps = Float.parseFloat(bundle.getString("fps"));
+        }
+        if (bundle.containsKey("iso")) {
+            mSensitivityTarget = Integer.parseInt(bundle.getString("iso"));
+        }
+        if (bundle.containsKey("exp_usec")) {
+            mFrameExposureTimeTargetUsec = Integer.parseInt(bundle.getString("exp_usec"));
+        }
+        if (bundle.containsKey("dur_usec")) {
+            mFrameDurationTargetUsec = Integer.parseInt(bundle.getString("dur_usec"));
+        }
+    }
+
+    /**
+     * A new intent while running (the activity is singleTop) changes the capture settings
+     * in place, without rebuilding the capture session.
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        Bundle bundle = intent.getExtras();
+        if (bundle == null) {
+            return;
+        }
+        Log.d(TAG, "Update settings");
+        parseCaptureSettings(bundle);
+        for (CameraStream stream : mStreams) {
+            stream.updateParameters();
+        }
+    }
+
+    private static boolean parseBoolean(String value) {
+        return value != null && (value.equals("1") || value.equalsIgnoreCase("true"));
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode != REQUEST_ALL_PERMISSIONS) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            markPermissionGranted();
+        } else {
+            Log.e(TAG, "Camera permission denied");
+        }
+    }
+
+    private void markPermissionGranted() {
+        for (CameraStream stream : mStreams) {
+            stream.mTimeline.mark(StartupTimeline.Stage.PERMISSION_GRANTED);
+        }
+        if (mMatrixTimeline != null) {
+            mMatrixTimeline.mark(StartupTimeline.Stage.PERMISSION_GRANTED);
+        }
+    }
+
+    // Runs the matrix on one camera and writes /sdcard/camapp.matrix.<camera>.csv
+    private void startMatrix(final String cameraId) {
+        final MatrixRunner runner = new MatrixRunner(this, cameraId);
+        String[] formats = mMatrixFormats.split(",");
+        int[] formatList = new int[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            formatList[i] = MatrixRunner.parseFormat(formats[i]);
+        }
+        runner.setFormats(formatList);
+        if (mMatrixFps != null) {
+            String[] fps = mMatrixFps.split(",");
+            float[] fpsList = new float[fps.length];
+            for (int i = 0; i < fps.length; i++) {
+                fpsList[i] = Float.parseFloat(fps[i].trim());
+            }
+            runner.setFps(fpsList);
+        }
+        if (mMatrixMaxSize != null) {
+            runner.setMaxSize(Size.parseSize(mMatrixMaxSize));
+        }
+        runner.setDurationMs(mMatrixDurationSec * 1000L);
+
+        mMatrixTimeline = new StartupTimeline("Matrix");
+        mMatrixTimeline.onStage(StartupTimeline.Stage.PERMISSION_GRANTED, mStartupExecutor, new Runnable() {
+            @Override
+            public void run() {
+                runner.run(new MatrixRunner.Listener() {
+                    @Override
+                    public void onPoint(int index, int count, MatrixRunner.Point point) {
+                        final String text = "Matrix camera " + cameraId + ": " + (index + 1) + "/" + count +
+                                "\n" + MatrixRunner.Point.getHeader() + "\n" + point;
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mDataText.setText(text);
+                            }
+                        });
+                    }
+                });
+                runner.writeResults(Environment.getExternalStorageDirectory().getPath() +
+                        "/camapp.matrix." + cameraId + ".csv");
+                Log.d(TAG, "Matrix done");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDataText.setText("Matrix camera " + cameraId + ": done");
+                    }
+                });
+            }
+        });
+    }
+
+    // Registers the analysis output before the preview opens the camera, so both go into
+    // the first session
+    private void startAnalysis(String cameraId) {
+        mAnalysisClient = CameraSource.openClient(this, cameraId);
+        Size requested = Size.parseSize(mAnalysisSize);
+        Size size = mAnalysisClient.getCamera().chooseOutputSize(ImageFormat.YUV_420_888,
+                requested.getWidth(), requested.getHeight());
+        Log.d(TAG, "Analysis size: " + size);
+        mAnalysisStage = mAnalysisClient.registerAnalysis(size.getWidth(), size.getHeight(),
+                new LumaAnalyzer(ANALYSIS_STEP));
+    }
+
+    // Extra cameras are shown as thumbnails stacked on the right side of the main preview
+    private TextureView addSecondaryView(int index, int count) {
+        TextureView view = new TextureView(this);
+        int width = getResources().getDisplayMetrics().widthPixels / 3;
+        int height = getResources().getDisplayMetrics().heightPixels / 3;
+        FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(width, height, Gravity.TOP | Gravity.END);
+        params.topMargin = (index - 1) * height;
+        mLayout.addView(view, params);
+        return view;
+    }
+
+    private void updateDataText() {
+        StringBuilder text = new StringBuilder();
+        for (CameraStream stream : mStreams) {
+            if (text.length() > 0) {
+                text.append("\n");
+            }
+            text.append(stream.getStatus());
+        }
+        if (mAnalysisStage != null) {
+            LumaAnalyzer luma = (LumaAnalyzer) mAnalysisStage.getAnalyzer();
+            text.append((new Formatter()).format("\nAnalysis %dx%d: %d analyzed, %d dropped, %.1f us/frame, luma mean: %.1f min: %d max: %d",
+                    mAnalysisStage.getWidth(), mAnalysisStage.getHeight(), mAnalysisStage.getAnalyzed(),
+                    mAnalysisStage.getDropped(), mAnalysisStage.getAnalysisTime().getMeanUs(),
+                    luma.getMean(), luma.getMin(), luma.getMax()).toString());
+        }
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mDataText.setText(text.toString());
+            }
+        });
+    }
 
     private static String[] retrieveNotGrantedPermissions(Context context) {
         ArrayList<String> nonGrantedPerms = new ArrayList<>();
@@ -106,8 +425,8 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         return nonGrantedPerms.toArray(new String[nonGrantedPerms.size()]);
     }
 
-    private void configureTextureViewTransform(Size previewSize, int viewWidth, int viewHeight) {
-        if (null == mTextureView) {
+    private void configureTextureViewTransform(TextureView textureView, Size previewSize, int viewWidth, int viewHeight) {
+        if (null == textureView) {
             return;
         }
         int rotation = this.getWindowManager().getDefaultDisplay().getRotation();
@@ -128,93 +447,440 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         }else if (Surface.ROTATION_180 == rotation) {
             matrix.postRotate(180, centerX, centerY);
         }
-        mTextureView.setTransform(matrix);
+        textureView.setTransform(matrix);
     }
 
 
-    @Override
-    public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
-        Log.d(TAG, "onSurfaceTextureAvailable w,h = " + width + ", " + height);
-        Size previewSize = new Size(width, height);
-        configureTextureViewTransform(previewSize, width, height);
-        final int rHeight = height;
-        final int rWidth = width;
-
-        mSurfaceTexture = surface;
-        final Context context = this;
-        mOutputMult = new OutputMultiplier();
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (ActivityCompat.checkSelfPermission(context, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-                    Log.d(TAG, "Missing permission");
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * One camera feeding one view: own CameraSource, OutputMultiplier and FpsMeasure.
+     */
+    class CameraStream implements TextureView.SurfaceTextureListener {
+        String mCameraId;
+        String mPhysicalCameraId;
+        TextureView mView;
+        SurfaceTexture mSurfaceTexture;
+        Surface mSurface;
+        OutputMultiplier mOutputMult;
+        CameraSource.Client mClient;
+        CameraSource mCamera;
+        FpsMeasure mFpsMeasure;
+        StartupTimeline mTimeline;
+        Size mCaptureSize;
+        ParameterUpdate mLastUpdate = null;
+        FrameDropDetector mDropDetector;
+        Size mViewSize;
+        // Set when the camera is opened before the multiplier input surface exists
+        boolean mDeferred = false;
+        CameraSource.SurfaceData mDeferredOutput = null;
+        // Shared surface mode: sensor timestamp to the view latching the frame
+        final LatencyHistogram mDisplayLatency = new LatencyHistogram("sensor.display");
+        boolean mRealtimeTimestamp = false;
+
+        CameraStream(String cameraId, String physicalCameraId, TextureView view, Size viewSize) {
+            mCameraId = cameraId;
+            mPhysicalCameraId = physicalCameraId;
+            mView = view;
+            mViewSize = viewSize;
+            mTimeline = new StartupTimeline("Camera." + getLabel());
+        }
 
-                mCamera = CameraSource.getCamera(context);
-                mSurfaceTexture.setDefaultBufferSize(width, height);
-                mOutputMult.addSurfaceTexture(mSurfaceTexture);
-                mOutputMult.confirmSize(rWidth, rHeight);
-                if (mFps > 0) {
-                    mCamera.setFps(mFps);
-                }
-                if (mSensitivityTarget > 0) {
-                    mCamera.setSensitivity(mSensitivityTarget);
-                }
-                if (mFrameDurationTargetUsec > 0) {
-                    mCamera.setFrameDurationUsec(mFrameDurationTargetUsec);
+        String getLabel() {
+            return (mPhysicalCameraId != null) ? mCameraId + ":" + mPhysicalCameraId : mCameraId;
+        }
+
+        String getStatus() {
+            if (mFpsMeasure == null) {
+                return "Camera " + getLabel() + ": starting";
+            }
+            String status = (new Formatter()).format("Camera %s rate: %.2f fps (1 sec average: %.2f fps), first frame: %.0f ms",
+                    getLabel(), mFpsMeasure.getFps(), mFpsMeasure.getAverageFps(),
+                    mTimeline.getElapsedMs(StartupTimeline.Stage.FIRST_FRAME)).toString();
+            ConvergenceStateMachine convergence = (mCamera != null) ? mCamera.getConvergence() : null;
+            if (convergence != null) {
+                status += (new Formatter()).format(", 3a (ms) ae: %.0f awb: %.0f af: %.0f",
+                        convergence.getAeMs(), convergence.getAwbMs(), convergence.getAfMs()).toString();
+            }
+            if (mDropDetector != null) {
+                status += (new Formatter()).format(", drops hal: %d bq: %d gl: %d",
+                        mDropDetector.getHalDrops(), mDropDetector.getBufferQueueDrops(),
+                        mDropDetector.getGlDrops()).toString();
+            }
+            LatencyHistogram latency = (mCamera != null) ? mCamera.getResultLatency() : null;
+            if (latency != null && latency.getCount() > 0) {
+                status += (new Formatter()).format(", result dispatch (us) p50: %.0f p99: %.0f max: %d",
+                        latency.getPercentileUs(0.5), latency.getPercentileUs(0.99), latency.getMaxUs()).toString();
+            }
+            OutageLog outages = (mCamera != null) ? mCamera.getOutages() : null;
+            if (outages != null && outages.getCount() > 0) {
+                status += (new Formatter()).format(", outages: %d (%s) down: %d ms lost: %d frames",
+                        outages.getCount(), outages.isDown() ? "down" : "up",
+                        outages.getDowntimeMs(), outages.getLostFrames()).toString();
+            }
+            if (mGpuTiming && mOutputMult != null) {
+                StringBuilder gpu = new StringBuilder();
+                for (GpuTimer timer : mOutputMult.getGpuTimers()) {
+                    gpu.append((gpu.length() > 0) ? "/" : "");
+                    gpu.append(Math.round(timer.getGpuTime().getPercentileUs(0.5)));
                 }
-                if (mFrameExposureTimeTargetUsec > 0) {
-                    mCamera.setFrameExposureTimeTargetUsec(mFrameExposureTimeTargetUsec);
+                status += ", gpu p50 (us): " + gpu;
+            }
+            if (mTenBit && mOutputMult != null) {
+                // The camera buffers themselves stay 8-bit, see README
+                status += ", egl config: " + (mOutputMult.is10Bit() ? "10-bit" : "8-bit") + ", camera: 8-bit";
+            }
+            if (mLastUpdate != null) {
+                status += (new Formatter()).format(", last update: %d frames / %.0f ms",
+                        mLastUpdate.mAppliedFrames, mLastUpdate.mAppliedMs).toString();
+            }
+            LatencyHistogram sensorLatency = (mOutputMult != null) ? mOutputMult.getSwapLatency() : mDisplayLatency;
+            if (sensorLatency.getCount() > 0) {
+                status += (new Formatter()).format(", %s (us) p50: %.0f p99: %.0f",
+                        sensorLatency.getName(), sensorLatency.getPercentileUs(0.5),
+                        sensorLatency.getPercentileUs(0.99)).toString();
+            }
+            return status;
+        }
+
+        /**
+         * Opens the camera and configures the session as soon as the permission is there, with
+         * a deferred output for the multiplier input. The view, EGL and input surface are set
+         * up in parallel, see startDeferredRenderer().
+         */
+        void openDeferred() {
+            mDeferred = true;
+            mTimeline.onStage(StartupTimeline.Stage.PERMISSION_GRANTED, mStartupExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    mClient = CameraSource.openClient(MainActivity.this, mCameraId);
+                    mCamera = mClient.getCamera();
+                    // Deferred outputs need a size the camera supports
+                    int rotation = getWindowManager().getDefaultDisplay().getRotation();
+                    mCaptureSize = mCamera.choosePreviewSize(mViewSize.getWidth(), mViewSize.getHeight(), 90 * rotation);
+                    applySettings();
+                    mDeferredOutput = mClient.registerDeferredSurface(mCaptureSize.getWidth(), mCaptureSize.getHeight(), mPhysicalCameraId);
+                    mClient.addStartupTimeline(mTimeline);
+                    mClient.start();
                 }
-                while(mOutputMult.getInputSurface() == null) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+            });
+        }
+
+        @Override
+        public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
+            Log.d(TAG, "onSurfaceTextureAvailable camera " + getLabel() + " w,h = " + width + ", " + height);
+            Size previewSize = new Size(width, height);
+            if (!mGlTransform || mSurfaceSharing) {
+                configureTextureViewTransform(mView, previewSize, width, height);
+            }
+            final int rHeight = height;
+            final int rWidth = width;
+
+            mSurfaceTexture = surface;
+            if (!mSurfaceSharing) {
+                mOutputMult = new OutputMultiplier();
+                mOutputMult.setName("OutputMultiplier." + getLabel());
+                mOutputMult.setStartupTimeline(mTimeline);
+                mOutputMult.setTenBit(mTenBit);
+                mOutputMult.setThreadedOutputs(mThreadedOutputs);
+                mOutputMult.setGpuTiming(mGpuTiming);
+            }
+            mTimeline.onStage(StartupTimeline.Stage.FIRST_FRAME, mStartupExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, mTimeline.toString());
+                    if (mRegistryBenchSec > 0 && mOutputMult != null && CameraStream.this == mStreams.get(0)) {
+                        startRegistryBenchmark();
                     }
                 }
-                mSurface = mOutputMult.getInputSurface();
-                mCamera.registerSurface(mSurface, rWidth, rHeight);
-                CameraSource.start();
-                FpsMeasure fpsMeasure= new FpsMeasure(30.0f, "Camera");
-                fpsMeasure.start();
-                while(true) {
-                    long tsNs = mOutputMult.awaitNewImage();
-                    fpsMeasure.addPtsNsec(tsNs);
-                    runOnUiThread(new Runnable() {
+            });
+
+            if (mDeferred) {
+                // Queued after openDeferred(), so the capture size is known by then
+                mTimeline.onStage(StartupTimeline.Stage.PERMISSION_GRANTED, mStartupExecutor, new Runnable() {
+                    @Override
+                    public void run() {
+                        startDeferredRenderer();
+                    }
+                });
+                mTimeline.onStage(StartupTimeline.Stage.INPUT_SURFACE_READY, mStartupExecutor, new Runnable() {
+                    @Override
+                    public void run() {
+                        attachDeferredSurface();
+                    }
+                });
+                return;
+            }
+            // The camera is started once we have both the permission and the input surface
+            mTimeline.onStage(StartupTimeline.Stage.PERMISSION_GRANTED, mStartupExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    mTimeline.onStage(StartupTimeline.Stage.INPUT_SURFACE_READY, mStartupExecutor, new Runnable() {
                         @Override
                         public void run() {
-
-                            String text =
-                                    (new Formatter()).format("Camera rate: %.2f fps (1 sec average: %.2f fps)",
-                                        fpsMeasure.getFps(), fpsMeasure.getAverageFps()).toString();
-                            mDataText.setText(text);
+                            startCamera();
                         }
                     });
                 }
-            }});
-        t.start();
+            });
+
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mClient = CameraSource.openClient(MainActivity.this, mCameraId);
+                    mCamera = mClient.getCamera();
+                    // The camera writes into the multiplier input at the capture size,
+                    // which is the view size unless the mode dictates another one.
+                    Size captureSize = new Size(rWidth, rHeight);
+                    if (mHighSpeed) {
+                        Size size = mCamera.setHighSpeed(rWidth, rHeight, mFps);
+                        if (size != null) {
+                            captureSize = size;
+                        }
+                    }
+                    mCaptureSize = captureSize;
+                    if (mSurfaceSharing) {
+                        // The view itself is the camera output
+                        mCamera.setSurfaceSharing(true);
+                        mSurfaceTexture.setDefaultBufferSize(captureSize.getWidth(), captureSize.getHeight());
+                        mSurface = new Surface(mSurfaceTexture);
+                        mTimeline.mark(StartupTimeline.Stage.INPUT_SURFACE_READY);
+                        return;
+                    }
+                    mSurfaceTexture.setDefaultBufferSize(width, height);
+                    addPreviewOutput();
+                    mOutputMult.confirmSize(captureSize.getWidth(), captureSize.getHeight());
+                }});
+            t.start();
+        }
 
-    }
+        private void addPreviewOutput() {
+            FrameswapControl preview = mOutputMult.addSurfaceTexture(mSurfaceTexture);
+            if (mOutputRate != null) {
+                preview.setRate(mOutputRate);
+            }
+            if (mGlTransform) {
+                // Same as configureTextureViewTransform(), the frames come in the natural
+                // orientation of the device
+                int rotation = getWindowManager().getDefaultDisplay().getRotation();
+                preview.setRotation((360 - 90 * rotation) % 360);
+                preview.setFitCenter(mCaptureSize.getHeight(), mCaptureSize.getWidth());
+            }
+        }
 
-    @Override
-    public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surface, int width, int height) {
-        Log.d(TAG, "onSurfaceTextureSizeChanged");
-    }
+        // Sets up EGL and the multiplier input while the camera opens
+        private void startDeferredRenderer() {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mSurfaceTexture.setDefaultBufferSize(mView.getWidth(), mView.getHeight());
+                    addPreviewOutput();
+                    mOutputMult.confirmSize(mCaptureSize.getWidth(), mCaptureSize.getHeight());
+                }});
+            t.start();
+        }
 
-    @Override
-    public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surface) {
-        Log.d(TAG, "onSurfaceTextureDestroyed");
-        return false;
-    }
+        private void attachDeferredSurface() {
+            mSurface = mOutputMult.getInputSurface();
+            mDropDetector = new FrameDropDetector(mSurface);
+            mOutputMult.setDropDetector(mDropDetector);
+            mOutputMult.setSensorLatency(true, mCamera.isRealtimeTimestamp());
+            mClient.addDropDetector(mDropDetector);
+            mClient.setDeferredSurface(mDeferredOutput, mSurface);
+            startMeasurement();
+        }
 
-    @Override
-    public void onSurfaceTextureUpdated(@NonNull SurfaceTexture surface) {
+        private void applySettings() {
+            if (mFps > 0 && !mCamera.isHighSpeed()) {
+                mCamera.setFps(mFps);
+            }
+            if (mSensitivityTarget > 0) {
+                mCamera.setSensitivity(mSensitivityTarget);
+            }
+            if (mFrameDurationTargetUsec > 0) {
+                mCamera.setFrameDurationUsec(mFrameDurationTargetUsec);
+            }
+            if (mFrameExposureTimeTargetUsec > 0) {
+                mCamera.setFrameExposureTimeTargetUsec(mFrameExposureTimeTargetUsec);
+            }
+            if (mSweep != null && !mCamera.isHighSpeed()) {
+                mCamera.setSweep(ParameterSweep.parse(mSweep));
+            }
+            mCamera.setRecovery(mRecovery);
+            mCamera.setCallbackPriorities(mResultPriority, mControlPriority);
+        }
+
+        private void startCamera() {
+            applySettings();
+            if (mOutputMult != null) {
+                mSurface = mOutputMult.getInputSurface();
+            }
+            mDropDetector = new FrameDropDetector(mSurface);
+            mRealtimeTimestamp = mCamera.isRealtimeTimestamp();
+            if (mOutputMult != null) {
+                mOutputMult.setDropDetector(mDropDetector);
+                mOutputMult.setSensorLatency(true, mRealtimeTimestamp);
+            }
+            mClient.addDropDetector(mDropDetector);
+            if (mOutputMult == null) {
+                // Frames are counted in onSurfaceTextureUpdated
+                float targetFps = (mCamera.getFps() > 0) ? mCamera.getFps() : 30.0f;
+                FpsMeasure fpsMeasure = new FpsMeasure(targetFps, "Camera." + getLabel());
+                fpsMeasure.start();
+                mFpsMeasure = fpsMeasure;
+            }
+            mClient.registerSurface(mSurface, mCaptureSize.getWidth(), mCaptureSize.getHeight(), mPhysicalCameraId);
+            mClient.addStartupTimeline(mTimeline);
+            if (!mClient.start()) {
+                // Without a deferred output or surface sharing, see Client.start()
+                Log.e(TAG, "Camera " + getLabel() + " not started, its camera streams to another view");
+            }
+            if (mOutputMult != null) {
+                startMeasurement();
+            }
+        }
+
+        // Adds and removes multiplier outputs while streaming, writes
+        // /sdcard/camapp.registry_bench.<camera>.txt
+        private void startRegistryBenchmark() {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RegistryBenchmark benchmark = new RegistryBenchmark(mOutputMult, getLabel());
+                    benchmark.run(mRegistryBenchSec * 1000L);
+                    benchmark.writeResults(Environment.getExternalStorageDirectory().getPath() +
+                            "/camapp.registry_bench." + getLabel().replace(':', '_') + ".txt");
+                }});
+            t.start();
+        }
+
+        // Measures the rate of the frames drawn by the multiplier
+        private void startMeasurement() {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // The measurement window is one second worth of frames at the target rate
+                    float targetFps = (mCamera.getFps() > 0) ? mCamera.getFps() : 30.0f;
+                    mFpsMeasure = new FpsMeasure(targetFps, "Camera." + getLabel());
+                    mFpsMeasure.start();
+                    while(true) {
+                        long tsNs = mOutputMult.awaitNewImage();
+                        mFpsMeasure.addPtsNsec(tsNs);
+                        updateDataText();
+                    }
+                }});
+            t.start();
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surface, int width, int height) {
+            Log.d(TAG, "onSurfaceTextureSizeChanged");
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surface) {
+            Log.d(TAG, "onSurfaceTextureDestroyed");
+            return false;
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(@NonNull SurfaceTexture surface) {
+            if (mOutputMult != null || mFpsMeasure == null) {
+                return;
+            }
+            // Shared surface: the view latched a camera frame
+            long tsNs = surface.getTimestamp();
+            long nowNs = mRealtimeTimestamp ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+            mDisplayLatency.recordNs(nowNs - tsNs);
+            mTimeline.mark(StartupTimeline.Stage.FIRST_FRAME);
+            mDropDetector.onFrameLatched(tsNs);
+            mDropDetector.onFrameDrawn(1, 1);
+            mFpsMeasure.addPtsNsec(tsNs);
+            updateDataText();
+        }
+
+        void updateParameters() {
+            if (mCamera == null) {
+                return;
+            }
+            if (mFps > 0) {
+                mCamera.setFps(mFps);
+            }
+            if (mSensitivityTarget > 0) {
+                mCamera.setSensitivity(mSensitivityTarget);
+            }
+            if (mFrameDurationTargetUsec > 0) {
+                mCamera.setFrameDurationUsec(mFrameDurationTargetUsec);
+            }
+            if (mFrameExposureTimeTargetUsec > 0) {
+                mCamera.setFrameExposureTimeTargetUsec(mFrameExposureTimeTargetUsec);
+            }
+            mCamera.applyParameters(new ParameterUpdate.Listener() {
+                @Override
+                public void onParameterUpdate(ParameterUpdate update) {
+                    mLastUpdate = update;
+                    updateDataText();
+                }
+            });
+        }
+
+        // Latch and swap latencies with the multiplier, display latency with a shared surface
+        void writeSensorLatency(String path) {
+            StringBuilder str = new StringBuilder();
+            if (mOutputMult != null) {
+                str.append(mOutputMult.getLatchLatency().toString());
+                str.append(mOutputMult.getSwapLatency().toString());
+            } else {
+                str.append(mDisplayLatency.toString());
+            }
+            Log.d(TAG, str.toString());
+            try {
+                FileWriter writer = new FileWriter(path);
+                writer.write(str.toString());
+                writer.flush();
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void release() {
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
+            }
+            if (mSurface != null) {
+                mSurface.release();
+            }
+            if (mCamera != null) {
+                ParameterSweep sweep = mCamera.getSweep();
+                if (sweep != null) {
+                    Log.d(TAG, sweep.toString());
+                    sweep.writeResults(Environment.getExternalStorageDirectory().getPath() +
+                            "/camapp.sweep." + getLabel().replace(':', '_') + ".txt");
+                }
+                if (mDropDetector != null) {
+                    Log.d(TAG, mDropDetector.toString());
+                }
+                if (mOutputMult != null) {
+                    Log.d(TAG, mOutputMult.getFrameWait().toString());
+                }
+                writeSensorLatency(Environment.getExternalStorageDirectory().getPath() +
+                        "/camapp.latency." + getLabel().replace(':', '_') + ".txt");
+                if (mGpuTiming && mOutputMult != null) {
+                    mOutputMult.writeGpuTimers(Environment.getExternalStorageDirectory().getPath() +
+                            "/camapp.gpu." + getLabel().replace(':', '_') + ".txt");
+                }
+                mCamera.getTelemetry().writeResults(Environment.getExternalStorageDirectory().getPath() +
+                        "/camapp.telemetry." + getLabel().replace(':', '_') + ".txt");
+                if (mCamera.getOutages().getCount() > 0) {
+                    Log.d(TAG, mCamera.getOutages().toString());
+                    mCamera.getOutages().writeResults(Environment.getExternalStorageDirectory().getPath() +
+                            "/camapp.outages." + getLabel().replace(':', '_') + ".txt");
+                }
+                mClient.close();
+            }
+            if (mOutputMult != null) {
+                mOutputMult.stopAndRelease();
+            }
+        }
     }
 
     @Override
@@ -227,17 +893,11 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
     protected void onStop() {
         super.onStop();
         Log.d(TAG, "onStop");
-        if (mSurfaceTexture != null) {
-            mSurfaceTexture.release();
-        }
-        if (mSurface != null) {
-            mSurface.release();
-        }
-        if (mCamera != null) {
-            mCamera.closeCamera();
+        for (CameraStream stream : mStreams) {
+            stream.release();
         }
-        if (mOutputMult != null) {
-            mOutputMult.stopAndRelease();
+        if (mAnalysisClient != null) {
+            mAnalysisClient.close();
         }
 
         System.exit(0);
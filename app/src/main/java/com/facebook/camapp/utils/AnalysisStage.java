@@ -0,0 +1,170 @@
+package com.facebook.camapp.utils;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CPU analysis of a YUV_420_888 camera output.
+ * <p>
+ * The ImageReader owns a fixed pool of maxImages buffers. A reader thread takes the latest
+ * image as soon as it is available, so the camera always has free buffers, and passes it to
+ * the analyzer thread. If the analyzer is still busy with the previous frame the new one is
+ * dropped: a slow analyzer costs frames here, never on the camera (and so on the preview or
+ * encoder outputs sharing the requests).
+ * <p>
+ * The analyzer reads the Image planes in place. At most one image is out for analysis, one
+ * more while the reader thread swaps them, the rest stay with the camera.
+ */
+public class AnalysisStage {
+    private static final String TAG = "camapp.analysis";
+    public final static int DEFAULT_MAX_IMAGES = 4;
+
+    /**
+     * Reads one frame. The planes are only valid during the call: do not keep the Image or
+     * its ByteBuffers, and do not close it.
+     */
+    public interface Analyzer {
+        void analyze(Image image);
+    }
+
+    final Analyzer mAnalyzer;
+    final ImageReader mReader;
+    final HandlerThread mReaderThread;
+    final HandlerThread mAnalyzerThread;
+    final Handler mAnalyzerHandler;
+    final AtomicBoolean mBusy = new AtomicBoolean(false);
+    // The frame handed to the analyzer thread, owned by it while mBusy
+    Image mCurrent = null;
+    final LatencyHistogram mAnalysisTime = new LatencyHistogram("analysis");
+    volatile long mReceived = 0;
+    volatile long mAnalyzed = 0;
+    volatile long mDropped = 0;
+
+    // Preallocated, posted once per analyzed frame
+    final Runnable mAnalyzeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Image image = mCurrent;
+            mCurrent = null;
+            long startNs = System.nanoTime();
+            try {
+                mAnalyzer.analyze(image);
+            } finally {
+                image.close();
+            }
+            mAnalysisTime.recordNs(System.nanoTime() - startNs);
+            mAnalyzed++;
+            mBusy.set(false);
+        }
+    };
+
+    public AnalysisStage(int width, int height, int maxImages, Analyzer analyzer) {
+        mAnalyzer = analyzer;
+        mReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxImages);
+        mReaderThread = new HandlerThread("analysis.reader", Process.THREAD_PRIORITY_DISPLAY);
+        mReaderThread.start();
+        mAnalyzerThread = new HandlerThread("analysis", Process.THREAD_PRIORITY_BACKGROUND);
+        mAnalyzerThread.start();
+        mAnalyzerHandler = new Handler(mAnalyzerThread.getLooper());
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image;
+                try {
+                    // Releases any older queued images
+                    image = reader.acquireLatestImage();
+                } catch (IllegalStateException e) {
+                    // All the buffers are out, should not happen with maxImages >= 3
+                    Log.w(TAG, "Cannot acquire image: " + e);
+                    return;
+                }
+                if (image == null) {
+                    return;
+                }
+                mReceived++;
+                if (!mBusy.compareAndSet(false, true)) {
+                    mDropped++;
+                    image.close();
+                    return;
+                }
+                mCurrent = image;
+                mAnalyzerHandler.post(mAnalyzeRunnable);
+            }
+        }, new Handler(mReaderThread.getLooper()));
+    }
+
+    public Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    public int getWidth() {
+        return mReader.getWidth();
+    }
+
+    public int getHeight() {
+        return mReader.getHeight();
+    }
+
+    public Analyzer getAnalyzer() {
+        return mAnalyzer;
+    }
+
+    public long getReceived() {
+        return mReceived;
+    }
+
+    public long getAnalyzed() {
+        return mAnalyzed;
+    }
+
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Time spent in the analyzer per frame.
+     */
+    public LatencyHistogram getAnalysisTime() {
+        return mAnalysisTime;
+    }
+
+    /**
+     * Stops the threads and closes the reader. Take the surface out of the camera first, and
+     * wait until the camera is done with it (see CameraSource.Client.close()).
+     */
+    public void release() {
+        mReader.setOnImageAvailableListener(null, null);
+        // Both threads finish what they were doing with the images first
+        mReaderThread.quitSafely();
+        mAnalyzerThread.quitSafely();
+        try {
+            mReaderThread.join();
+            mAnalyzerThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mReader.close();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("analysis {\n");
+        str.append("  size: " + getWidth() + "x" + getHeight() + "\n");
+        str.append("  received: " + mReceived + "\n");
+        str.append("  analyzed: " + mAnalyzed + "\n");
+        str.append("  dropped: " + mDropped + "\n");
+        str.append("  analyzer: " + mAnalyzer + "\n");
+        str.append("}\n");
+        str.append(mAnalysisTime.toString());
+        return str.toString();
+    }
+}
@@ -0,0 +1,521 @@
+package com.facebook.camapp.utils;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.MandatoryStreamCombination;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static android.content.Context.CAMERA_SERVICE;
+
+/**
+ * Compact on-disk cache of the camera characteristics used by CameraSource.
+ * <p>
+ * There is one binary file per camera id, tagged with Build.FINGERPRINT. Entries are loaded
+ * lazily. The HAL is only queried when there is no entry for the current fingerprint (i.e.
+ * first run or after a system update), and then the binary file and the full text dump
+ * (/sdcard/camapp.CameraCharacteristics.txt) are regenerated on a background thread.
+ */
+public class CameraCharacteristicsCache {
+    private static final String TAG = "camapp.cache";
+    private static final int MAGIC = 0x43414d43; // "CAMC"
+    private static final int VERSION = 5;
+
+    // Guards mEntries, mLoadLocks and mDumpScheduled, never held across IO
+    private static final HashMap<String, Entry> mEntries = new HashMap<>();
+    // One per camera id, held while its entry is read from disk or the HAL
+    private static final HashMap<String, Object> mLoadLocks = new HashMap<>();
+    private static boolean mDumpScheduled = false;
+
+    /**
+     * The subset of CameraCharacteristics the capture pipeline needs.
+     */
+    public static class Entry {
+        public String mCameraId;
+        public int mHwLevel = -1;
+        public boolean mAwbLockAvailable = false;
+        public int mLensFacing = -1;
+        public int mSensorOrientation = 0;
+        // SENSOR_INFO_TIMESTAMP_SOURCE, REALTIME if the sensor timestamps are in the
+        // elapsedRealtimeNanos() time base
+        public int mTimestampSource = CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+        public Range<Integer> mSensitivityRange = null;
+        public Range<Integer>[] mFpsRanges = null;
+        // Output sizes for SurfaceTexture targets (preview, GL)
+        public Size[] mPreviewSizes = new Size[0];
+        // Constrained high speed video sizes, and the fps ranges available for each of them
+        public Size[] mHighSpeedSizes = new Size[0];
+        public Range<Integer>[][] mHighSpeedFpsRanges = new Range[0][];
+        // Output formats, PRIVATE standing for SurfaceTexture targets, with their sizes and
+        // the min frame and stall durations of each size
+        public int[] mStreamFormats = new int[0];
+        public Size[][] mStreamSizes = new Size[0][];
+        public long[][] mMinFrameDurations = new long[0][];
+        public long[][] mStallDurations = new long[0][];
+        // SCALER_MANDATORY_STREAM_COMBINATIONS (API 29) without the reprocessable ones, as
+        // format and sizes per combination and output stream. Null if not listed.
+        public int[][] mMandatoryFormats = null;
+        public Size[][][] mMandatorySizes = null;
+
+        @SuppressWarnings("unchecked")
+        Entry(String cameraId, CameraCharacteristics characteristics) {
+            mCameraId = cameraId;
+            Integer hwLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            mHwLevel = (hwLevel != null) ? hwLevel : -1;
+            Boolean awbLock = characteristics.get(CameraCharacteristics.CONTROL_AWB_LOCK_AVAILABLE);
+            mAwbLockAvailable = (awbLock != null) && awbLock;
+            Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            mLensFacing = (lensFacing != null) ? lensFacing : -1;
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            mSensorOrientation = (orientation != null) ? orientation : 0;
+            Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (timestampSource != null) {
+                mTimestampSource = timestampSource;
+            }
+            mSensitivityRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            mFpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map != null && map.getOutputSizes(SurfaceTexture.class) != null) {
+                mPreviewSizes = map.getOutputSizes(SurfaceTexture.class);
+            }
+            if (map != null && map.getHighSpeedVideoSizes() != null) {
+                mHighSpeedSizes = map.getHighSpeedVideoSizes();
+                mHighSpeedFpsRanges = new Range[mHighSpeedSizes.length][];
+                for (int i = 0; i < mHighSpeedSizes.length; i++) {
+                    mHighSpeedFpsRanges[i] = map.getHighSpeedVideoFpsRangesFor(mHighSpeedSizes[i]);
+                }
+            }
+            if (map != null) {
+                setStreams(map);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                MandatoryStreamCombination[] combinations = characteristics.get(CameraCharacteristics.SCALER_MANDATORY_STREAM_COMBINATIONS);
+                if (combinations != null) {
+                    setMandatory(combinations);
+                }
+            }
+        }
+
+        private void setStreams(StreamConfigurationMap map) {
+            ArrayList<Integer> formats = new ArrayList<>();
+            formats.add(ImageFormat.PRIVATE);
+            for (int format : map.getOutputFormats()) {
+                if (format != ImageFormat.PRIVATE) {
+                    formats.add(format);
+                }
+            }
+            mStreamFormats = new int[formats.size()];
+            mStreamSizes = new Size[formats.size()][];
+            mMinFrameDurations = new long[formats.size()][];
+            mStallDurations = new long[formats.size()][];
+            for (int i = 0; i < formats.size(); i++) {
+                int format = formats.get(i);
+                boolean surfaceTexture = (format == ImageFormat.PRIVATE);
+                Size[] sizes = surfaceTexture ? map.getOutputSizes(SurfaceTexture.class) : map.getOutputSizes(format);
+                if (sizes == null) {
+                    sizes = new Size[0];
+                }
+                mStreamFormats[i] = format;
+                mStreamSizes[i] = sizes;
+                mMinFrameDurations[i] = new long[sizes.length];
+                mStallDurations[i] = new long[sizes.length];
+                for (int j = 0; j < sizes.length; j++) {
+                    mMinFrameDurations[i][j] = surfaceTexture ?
+                            map.getOutputMinFrameDuration(SurfaceTexture.class, sizes[j]) :
+                            map.getOutputMinFrameDuration(format, sizes[j]);
+                    mStallDurations[i][j] = surfaceTexture ?
+                            map.getOutputStallDuration(SurfaceTexture.class, sizes[j]) :
+                            map.getOutputStallDuration(format, sizes[j]);
+                }
+            }
+        }
+
+        private void setMandatory(MandatoryStreamCombination[] combinations) {
+            ArrayList<MandatoryStreamCombination> outputOnly = new ArrayList<>();
+            for (MandatoryStreamCombination combination : combinations) {
+                if (!combination.isReprocessable()) {
+                    outputOnly.add(combination);
+                }
+            }
+            mMandatoryFormats = new int[outputOnly.size()][];
+            mMandatorySizes = new Size[outputOnly.size()][][];
+            for (int i = 0; i < outputOnly.size(); i++) {
+                List<MandatoryStreamCombination.MandatoryStreamInformation> streams = outputOnly.get(i).getStreamsInformation();
+                mMandatoryFormats[i] = new int[streams.size()];
+                mMandatorySizes[i] = new Size[streams.size()][];
+                for (int j = 0; j < streams.size(); j++) {
+                    mMandatoryFormats[i][j] = streams.get(j).getFormat();
+                    mMandatorySizes[i][j] = streams.get(j).getAvailableSizes().toArray(new Size[0]);
+                }
+            }
+        }
+
+        /**
+         * Index of format in mStreamFormats, -1 if the camera cannot output it.
+         */
+        public int getStreamIndex(int format) {
+            for (int i = 0; i < mStreamFormats.length; i++) {
+                if (mStreamFormats[i] == format) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Entry(DataInputStream in) throws IOException {
+            mCameraId = in.readUTF();
+            mHwLevel = in.readInt();
+            mAwbLockAvailable = in.readBoolean();
+            mLensFacing = in.readInt();
+            mSensorOrientation = in.readInt();
+            mTimestampSource = in.readInt();
+            mSensitivityRange = readRange(in);
+            int count = in.readInt();
+            if (count >= 0) {
+                mFpsRanges = new Range[count];
+                for (int i = 0; i < count; i++) {
+                    mFpsRanges[i] = readRange(in);
+                }
+            }
+            count = in.readInt();
+            mPreviewSizes = new Size[count];
+            for (int i = 0; i < count; i++) {
+                mPreviewSizes[i] = new Size(in.readInt(), in.readInt());
+            }
+            count = in.readInt();
+            mHighSpeedSizes = new Size[count];
+            mHighSpeedFpsRanges = new Range[count][];
+            for (int i = 0; i < count; i++) {
+                mHighSpeedSizes[i] = new Size(in.readInt(), in.readInt());
+                mHighSpeedFpsRanges[i] = new Range[in.readInt()];
+                for (int j = 0; j < mHighSpeedFpsRanges[i].length; j++) {
+                    mHighSpeedFpsRanges[i][j] = readRange(in);
+                }
+            }
+            count = in.readInt();
+            mStreamFormats = new int[count];
+            mStreamSizes = new Size[count][];
+            mMinFrameDurations = new long[count][];
+            mStallDurations = new long[count][];
+            for (int i = 0; i < count; i++) {
+                mStreamFormats[i] = in.readInt();
+                mStreamSizes[i] = readSizes(in);
+                mMinFrameDurations[i] = new long[mStreamSizes[i].length];
+                mStallDurations[i] = new long[mStreamSizes[i].length];
+                for (int j = 0; j < mStreamSizes[i].length; j++) {
+                    mMinFrameDurations[i][j] = in.readLong();
+                    mStallDurations[i][j] = in.readLong();
+                }
+            }
+            count = in.readInt();
+            if (count >= 0) {
+                mMandatoryFormats = new int[count][];
+                mMandatorySizes = new Size[count][][];
+                for (int i = 0; i < count; i++) {
+                    int streams = in.readInt();
+                    mMandatoryFormats[i] = new int[streams];
+                    mMandatorySizes[i] = new Size[streams][];
+                    for (int j = 0; j < streams; j++) {
+                        mMandatoryFormats[i][j] = in.readInt();
+                        mMandatorySizes[i][j] = readSizes(in);
+                    }
+                }
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(mCameraId);
+            out.writeInt(mHwLevel);
+            out.writeBoolean(mAwbLockAvailable);
+            out.writeInt(mLensFacing);
+            out.writeInt(mSensorOrientation);
+            out.writeInt(mTimestampSource);
+            writeRange(out, mSensitivityRange);
+            if (mFpsRanges == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(mFpsRanges.length);
+                for (Range<Integer> range : mFpsRanges) {
+                    writeRange(out, range);
+                }
+            }
+            out.writeInt(mPreviewSizes.length);
+            for (Size size : mPreviewSizes) {
+                out.writeInt(size.getWidth());
+                out.writeInt(size.getHeight());
+            }
+            out.writeInt(mHighSpeedSizes.length);
+            for (int i = 0; i < mHighSpeedSizes.length; i++) {
+                out.writeInt(mHighSpeedSizes[i].getWidth());
+                out.writeInt(mHighSpeedSizes[i].getHeight());
+                out.writeInt(mHighSpeedFpsRanges[i].length);
+                for (Range<Integer> range : mHighSpeedFpsRanges[i]) {
+                    writeRange(out, range);
+                }
+            }
+            out.writeInt(mStreamFormats.length);
+            for (int i = 0; i < mStreamFormats.length; i++) {
+                out.writeInt(mStreamFormats[i]);
+                writeSizes(out, mStreamSizes[i]);
+                for (int j = 0; j < mStreamSizes[i].length; j++) {
+                    out.writeLong(mMinFrameDurations[i][j]);
+                    out.writeLong(mStallDurations[i][j]);
+                }
+            }
+            if (mMandatoryFormats == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(mMandatoryFormats.length);
+                for (int i = 0; i < mMandatoryFormats.length; i++) {
+                    out.writeInt(mMandatoryFormats[i].length);
+                    for (int j = 0; j < mMandatoryFormats[i].length; j++) {
+                        out.writeInt(mMandatoryFormats[i][j]);
+                        writeSizes(out, mMandatorySizes[i][j]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Size[] readSizes(DataInputStream in) throws IOException {
+        Size[] sizes = new Size[in.readInt()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(in.readInt(), in.readInt());
+        }
+        return sizes;
+    }
+
+    private static void writeSizes(DataOutputStream out, Size[] sizes) throws IOException {
+        out.writeInt(sizes.length);
+        for (Size size : sizes) {
+            out.writeInt(size.getWidth());
+            out.writeInt(size.getHeight());
+        }
+    }
+
+    private static Range<Integer> readRange(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int lower = in.readInt();
+        int upper = in.readInt();
+        return new Range<>(lower, upper);
+    }
+
+    private static void writeRange(DataOutputStream out, Range<Integer> range) throws IOException {
+        out.writeBoolean(range != null);
+        if (range != null) {
+            out.writeInt(range.getLower());
+            out.writeInt(range.getUpper());
+        }
+    }
+
+    /**
+     * Starts loading the entry for cameraId on a background thread, so a later get() does
+     * not have to wait for it.
+     */
+    public static void prefetch(final Context context, final String cameraId) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                get(context, cameraId);
+            }
+        }, "camchar.prefetch");
+        t.start();
+    }
+
+    /**
+     * Returns the cached characteristics of cameraId, or null if the camera cannot be queried.
+     */
+    public static Entry get(Context context, String cameraId) {
+        Object loadLock;
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(cameraId);
+            if (entry != null) {
+                return entry;
+            }
+            loadLock = mLoadLocks.get(cameraId);
+            if (loadLock == null) {
+                loadLock = new Object();
+                mLoadLocks.put(cameraId, loadLock);
+            }
+        }
+        // Other cameras are loaded, and loaded entries returned, meanwhile
+        synchronized (loadLock) {
+            synchronized (mEntries) {
+                Entry entry = mEntries.get(cameraId);
+                if (entry != null) {
+                    // Loaded by the thread holding loadLock before
+                    return entry;
+                }
+            }
+            boolean queried = false;
+            Entry entry = load(context, cameraId);
+            if (entry == null) {
+                Log.d(TAG, "No cached characteristics for camera " + cameraId + " (" + Build.FINGERPRINT + ")");
+                entry = query(context, cameraId);
+                if (entry == null) {
+                    return null;
+                }
+                queried = true;
+            }
+            synchronized (mEntries) {
+                mEntries.put(cameraId, entry);
+                if (queried) {
+                    scheduleRegeneration(context);
+                }
+            }
+            return entry;
+        }
+    }
+
+    private static File getFile(Context context, String cameraId) {
+        return new File(context.getCacheDir(), "camapp.camchar." + cameraId + ".bin");
+    }
+
+    private static Entry load(Context context, String cameraId) {
+        File file = getFile(context, cameraId);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.d(TAG, "Fingerprint changed, dropping cached characteristics for camera " + cameraId);
+                return null;
+            }
+            Entry entry = new Entry(in);
+            if (!cameraId.equals(entry.mCameraId)) {
+                return null;
+            }
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static Entry query(Context context, String cameraId) {
+        CameraManager manager = (CameraManager) context.getSystemService(CAMERA_SERVICE);
+        if (manager == null) {
+            return null;
+        }
+        try {
+            return new Entry(cameraId, manager.getCameraCharacteristics(cameraId));
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void store(Context context, Entry entry) {
+        File file = getFile(context, entry.mCameraId);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            entry.write(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Rewrites the binary entries and the text dump of all cameras, off the critical path.
+    // Call with mEntries held.
+    private static void scheduleRegeneration(final Context context) {
+        if (mDumpScheduled) {
+            return;
+        }
+        mDumpScheduled = true;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                regenerate(context);
+            }
+        }, "camchar.dump");
+        t.start();
+    }
+
+    private static void regenerate(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(CAMERA_SERVICE);
+        if (manager == null) {
+            return;
+        }
+        try {
+            String[] cameraIdList = manager.getCameraIdList();
+            StringBuffer camera_characteristics_info = new StringBuffer();
+
+            // List info about all cameras
+            camera_characteristics_info.append("fingerprint: " + Build.FINGERPRINT + "\n");
+            camera_characteristics_info.append("camera_characteristics {\n");
+            for (String id : cameraIdList) {
+                CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(id);
+                String str = CameraCharacteristicsHelper.toText(cameraCharacteristics, id, 1);
+                camera_characteristics_info.append(str);
+                store(context, new Entry(id, cameraCharacteristics));
+            }
+            camera_characteristics_info.append("}\n");
+            Log.d(TAG, camera_characteristics_info + "\n");
+
+            // Write info to sdcard
+            FileWriter writer = null;
+            try {
+                writer = new FileWriter(Environment.getExternalStorageDirectory().getPath() + "/camapp.CameraCharacteristics.txt");
+                Log.d(TAG, "Write to file");
+                writer.write(camera_characteristics_info.toString());
+                writer.flush();
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } catch (CameraAccessException cameraAccessException) {
+            cameraAccessException.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.facebook.camapp.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A camera callback thread with its own priority. Every callback is timed from the moment the
+ * camera framework hands it over (execute(), on the binder thread) to the moment it runs, so
+ * a late callback can be told apart from a slow one.
+ */
+public class CameraExecutor implements Executor {
+    final HandlerThread mThread;
+    final Handler mHandler;
+    final LatencyHistogram mLatency;
+
+    /**
+     * @param priority an android.os.Process thread priority, e.g. THREAD_PRIORITY_DISPLAY
+     */
+    public CameraExecutor(String name, int priority) {
+        mThread = new HandlerThread(name, priority);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mLatency = new LatencyHistogram(name);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedNs = System.nanoTime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mLatency.recordNs(System.nanoTime() - queuedNs);
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * For delayed work on the same thread, not timed.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Delay between a callback being delivered and it running.
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public void quit() {
+        mThread.quitSafely();
+    }
+}
@@ -7,6 +7,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
@@ -20,9 +21,8 @@ import android.hardware.camera2.params.RecommendedStreamConfigurationMap;
 import android.hardware.camera2.params.SessionConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Build;
-import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -30,12 +30,17 @@ import android.view.Surface;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import com.facebook.camapp.utils.CameraCharacteristicsHelper;
-import java.io.IOException;
-import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.Context.CAMERA_SERVICE;
 
@@ -45,6 +50,7 @@ public class CameraSource {
     Context mContext;
     CameraManager mCameraManager;
     CameraDevice mCameraDevice;
+    // Delayed control work (reopening), on the control thread
     Handler mHandler;
     Vector<OutputConfiguration> mOutputConfigs;
     CameraCaptureSession mSession;
@@ -53,54 +59,341 @@ public class CameraSource {
     int mFrameExposureTimeTargetUsec = -1;
     float mFramerateTarget = -1;
     boolean mHasAwbLock = true;
-    boolean mAWBconverged = false;
     boolean mCameraReady = false;
     boolean mManualSettings = false;
-    final static int WAIT_TIME_SHORT_MS = 3000;  // 3 sec
-
-
-    private static CameraSource mCameraSource = null;
-    private static int mClients = 0;
+    // Constrained high speed (slow motion) session
+    boolean mHighSpeed = false;
+    Range<Integer> mHighSpeedFpsRange = null;
+    // Surfaces with the same size share one camera stream (HAL fan-out instead of GL fan-out)
+    boolean mSurfaceSharing = false;
+    // Per-frame parameter sweep, replaces the single repeating request
+    ParameterSweep mSweep = null;
+    // 3A startup sequence of the current session
+    volatile ConvergenceStateMachine mConvergence = null;
+    // Per-frame results of all the sessions of this camera
+    final CaptureTelemetry mTelemetry = new CaptureTelemetry(TELEMETRY_FRAMES);
+    final static int TELEMETRY_FRAMES = 512;
+    // Drop detectors of the client outputs, iterated on every capture callback
+    CopyOnWriteArrayList<FrameDropDetector> mDropDetectors = new CopyOnWriteArrayList<>();
+    // Reopen the camera after a disconnect or error, with exponential backoff
+    boolean mRecovery = true;
+    int mReopenAttempts = 0;
+    final OutageLog mOutages = new OutageLog();
+    final static long REOPEN_INITIAL_DELAY_MS = 250;
+    final static long REOPEN_MAX_DELAY_MS = 8000;
+    final static int MAX_REOPEN_ATTEMPTS = 10;
+    // Longest wait for the camera to stop writing into the outputs of a closed client
+    final static long REMOVAL_TIMEOUT_MS = 1000;
+
+
+    // One instance per camera id, so several sensors can stream concurrently
+    private static final HashMap<String, CameraSource> mCameraSources = new HashMap<>();
     static Object lock = new Object();
+    private final Vector<Client> mClients = new Vector<>();
+    String mCameraId;
+    // Capture results and session/device control run on their own threads
+    CameraExecutor mResultExecutor;
+    CameraExecutor mControlExecutor;
+    int mResultPriority = Process.THREAD_PRIORITY_DISPLAY;
+    int mControlPriority = Process.THREAD_PRIORITY_FOREGROUND;
+    boolean mOpening = false;
+    // Outputs of all the clients
     Vector<SurfaceData> mSurfaces = new Vector<>();
+    // Shared output configurations of the session, by size and physical camera
+    HashMap<String, OutputConfiguration> mSharedConfigs = new HashMap<>();
+    // Startup timelines of the clients, CAMERA_OPENED and SESSION_CONFIGURED are marked on them
+    CopyOnWriteArrayList<StartupTimeline> mTimelines = new CopyOnWriteArrayList<>();
 
     int mHwLevel = -1;
 
-    public static CameraSource getCamera(Context theContext) {
+    /**
+     * Opens a client of the first camera id reported by the system.
+     */
+    public static Client openClient(Context theContext) {
+        String[] cameraIdList = getCameraIdList(theContext);
+        if (cameraIdList == null || cameraIdList.length == 0) {
+            Log.e(TAG, "No camera");
+            return null;
+        }
+        return openClient(theContext, cameraIdList[0]);
+    }
+
+    /**
+     * Opens a client of a specific camera id. All the clients of the same id share one
+     * camera source (and one CameraDevice), each one with its own outputs.
+     */
+    public static Client openClient(Context theContext, String cameraId) {
+        Client client;
         synchronized (lock) {
-            if (mCameraSource == null) {
-                mCameraSource = new CameraSource(theContext);
+            CameraSource cameraSource = mCameraSources.get(cameraId);
+            if (cameraSource == null) {
+                cameraSource = new CameraSource(theContext, cameraId);
+                mCameraSources.put(cameraId, cameraSource);
+            }
+            client = cameraSource.new Client();
+            cameraSource.mClients.add(client);
+            Log.d(TAG, "Camera " + cameraId + " clients is: " + cameraSource.mClients.size());
+        }
+        return client;
+    }
+
+    public static String[] getCameraIdList(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(CAMERA_SERVICE);
+        if (manager == null) {
+            return null;
+        }
+        try {
+            return manager.getCameraIdList();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Returns true if the system reports that all the camera ids can be opened at the same time.
+    public static boolean isConcurrentCombinationSupported(Context context, Set<String> cameraIds) {
+        if (cameraIds.size() <= 1) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            // No way to ask, just try
+            return true;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(CAMERA_SERVICE);
+        try {
+            for (Set<String> combination : manager.getConcurrentCameraIds()) {
+                if (combination.containsAll(cameraIds)) {
+                    return true;
+                }
             }
-            mClients += 1;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
         }
-        return mCameraSource;
+        return false;
     }
 
-    private CameraSource(Context context) {
+    private CameraSource(Context context, String cameraId) {
         mContext = context;
+        mCameraId = cameraId;
     }
 
-    public void closeCamera() {
-        synchronized (mCameraSource) {
-            mClients -= 1;
-            Log.d(TAG, "Clients is: " + mClients);
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    // Takes away the outputs of a client, and closes the camera after the last one. Returns
+    // what to wait for before the outputs can be released, null if nothing.
+    private SurfaceRemoval removeClient(Client client) {
+        synchronized (lock) {
+            mClients.remove(client);
+            Log.d(TAG, "Camera " + mCameraId + " clients is: " + mClients.size());
+            mTimelines.removeAll(client.mClientTimelines);
+            mDropDetectors.removeAll(client.mClientDropDetectors);
+            if (!mClients.isEmpty()) {
+                return removeSurfaces(client.mClientSurfaces);
+            }
 
             try {
                 if (mSession != null) {
                     mSession.abortCaptures();
                 }
-                mSession = null;
-                if (mOutputConfigs != null)
-                    mOutputConfigs.clear();
-                if (mSurfaces != null)
-                    mSurfaces.clear();
             } catch (CameraAccessException e) {
                 e.printStackTrace();
             }
-
-            if (mClients == 0) {
+            mSession = null;
+            synchronized (mRequestLock) {
+                failPendingUpdate("camera closed");
+            }
+            dropRemovals();
+            if (mOutputConfigs != null)
+                mOutputConfigs.clear();
+            mSurfaces.clear();
+            mDropDetectors.clear();
+            if (mCameraDevice != null) {
                 mCameraDevice.close();
+                mCameraDevice = null;
             }
+            if (mResultExecutor != null) {
+                Log.d(TAG, mResultExecutor.getLatency().toString());
+                mResultExecutor.quit();
+                mResultExecutor = null;
+            }
+            if (mControlExecutor != null) {
+                Log.d(TAG, mControlExecutor.getLatency().toString());
+                mControlExecutor.quit();
+                mControlExecutor = null;
+            }
+            mCameraSources.remove(mCameraId);
+            // close() drains the in-flight requests before returning
+            return null;
+        }
+    }
+
+    // Stops feeding outputs that went away, without interrupting the other outputs. Removing
+    // a surface with pending results is refused, so shared outputs only leave their output
+    // configuration once the repeating request that targets them is done, see SurfaceRemoval.
+    private SurfaceRemoval removeSurfaces(List<SurfaceData> removed) {
+        if (removed.isEmpty()) {
+            return null;
+        }
+        mSurfaces.removeAll(removed);
+        CameraCaptureSession session = mSession;
+        if (session == null || mCameraDevice == null) {
+            return null;
+        }
+        if (mHighSpeed) {
+            // High speed bursts cannot be retargeted in place
+            startCapture();
+            return null;
+        }
+        synchronized (mRequestLock) {
+            if (mRepeatingBuilder != null) {
+                for (SurfaceData data : removed) {
+                    if (data.mSurface != null) {
+                        Log.d(TAG, "Remove target surface: " + data.mSurface);
+                        mRepeatingBuilder.removeTarget(data.mSurface);
+                    }
+                }
+                // Before submitting, the old sequence can end right away
+                SurfaceRemoval removal = new SurfaceRemoval(session, removed, mRepeatingSequenceId);
+                mRemovals.add(removal);
+                if (hasTargets()) {
+                    resubmitRepeating(session);
+                } else {
+                    try {
+                        session.stopRepeating();
+                    } catch (CameraAccessException | IllegalStateException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (removal.mLastSequenceId < 0) {
+                    onSequenceDone(removal.mLastSequenceId);
+                }
+                return removal;
+            }
+        }
+        // Not streaming yet, the removed outputs may be the deferred ones it was waiting for
+        if (!hasPendingSurfaces()) {
+            startStreaming(session);
+        }
+        return null;
+    }
+
+    // True if some output of the session is still in the repeating request
+    private boolean hasTargets() {
+        for (SurfaceData data : mSurfaces) {
+            if (data.mSurface != null && data.mConfig != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A capture sequence ended, finishes the removals waiting for it
+    private void onSequenceDone(int sequenceId) {
+        for (final SurfaceRemoval removal : mRemovals) {
+            if (sequenceId < removal.mLastSequenceId || !mRemovals.remove(removal)) {
+                continue;
+            }
+            CameraExecutor executor = mControlExecutor;
+            if (executor == null) {
+                removal.mDone.countDown();
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    detachSurfaces(removal);
+                }
+            });
+        }
+    }
+
+    // Takes the removed shared outputs out of their output configuration, so they stop
+    // counting against getMaxSharedSurfaceCount()
+    private void detachSurfaces(SurfaceRemoval removal) {
+        synchronized (mRequestLock) {
+            if (removal.mSession == mSession) {
+                for (SurfaceData data : removal.mRemoved) {
+                    OutputConfiguration config = data.mConfig;
+                    if (config == null || data.mSurface == null || config.getSurfaces().size() < 2) {
+                        continue;
+                    }
+                    try {
+                        config.removeSurface(data.mSurface);
+                        removal.mSession.updateOutputConfiguration(config);
+                        Log.d(TAG, "Detached surface: " + data.mSurface + ", " + data.getKey());
+                    } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+                        // e.g. the surface the configuration was created with
+                        Log.w(TAG, "Cannot remove surface from the session: " + e);
+                    }
+                    data.mConfig = null;
+                }
+            }
+        }
+        removal.mDone.countDown();
+    }
+
+    // A new session or a closed camera: the pending removals have nothing left to detach
+    private void dropRemovals() {
+        for (SurfaceRemoval removal : mRemovals) {
+            removal.mDone.countDown();
+        }
+        mRemovals.clear();
+    }
+
+    /**
+     * Adds new outputs to the running session without reconfiguring it: each surface joins
+     * the shared output configuration of its size (surface sharing mode only).
+     *
+     * @return false if some output needs a new session
+     */
+    private boolean attachSurfaces(List<SurfaceData> added) {
+        CameraCaptureSession session = mSession;
+        if (session == null || mHighSpeed || !mSurfaceSharing) {
+            return false;
+        }
+        synchronized (mRequestLock) {
+            if (mRepeatingBuilder == null) {
+                return false;
+            }
+            for (SurfaceData data : added) {
+                if (data.mSurface == null) {
+                    return false;
+                }
+                OutputConfiguration config = mSharedConfigs.get(data.getKey());
+                if (config == null || config.getSurfaces().size() >= config.getMaxSharedSurfaceCount()) {
+                    return false;
+                }
+                try {
+                    config.addSurface(data.mSurface);
+                    session.updateOutputConfiguration(config);
+                } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+                    Log.w(TAG, "Cannot add surface to the session: " + e);
+                    return false;
+                }
+                Log.d(TAG, "Attached surface: " + data.mSurface + ", " + data.getKey());
+                data.mConfig = config;
+                mRepeatingBuilder.addTarget(data.mSurface);
+            }
+            resubmitRepeating(session);
+        }
+        return true;
+    }
+
+    // Replaces the repeating request after its targets changed. Call with mRequestLock held.
+    private void resubmitRepeating(CameraCaptureSession session) {
+        try {
+            if (mCameraReady) {
+                submitRepeating(session, buildRepeating(mRepeatingBuilder));
+            } else {
+                // 3A is converging, its next step keeps the new targets
+                CaptureRequest request = mRepeatingBuilder.build();
+                carryUpdate(Collections.singletonList(request));
+                mRepeatingSequenceId = session.setSingleRepeatingRequest(request, mResultExecutor, mCapResult);
+            }
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
         }
     }
 
@@ -112,76 +405,574 @@ public class CameraSource {
         }
 
         try {
-            String[] cameraIdList = mCameraManager.getCameraIdList();
-            StringBuffer camera_characteristics_info = new StringBuffer();
-
-            // Select the very first first
-            String cameraId = cameraIdList[0];
-            camera_characteristics_info.append("selected_camera_id: " + cameraId + "\n");
-
-            // List info about all cameras
-            camera_characteristics_info.append("camera_characteristics {\n");
-            for (String id : cameraIdList) {
-                CameraCharacteristics cameraCharacteristics = mCameraManager.getCameraCharacteristics(id);
-                String str = CameraCharacteristicsHelper.toText(cameraCharacteristics, id, 1);
-                camera_characteristics_info.append(str);
+            Log.d(TAG, "selected_camera_id: " + mCameraId);
+            // The characteristics are only needed once the session is configured
+            CameraCharacteristicsCache.prefetch(mContext, mCameraId);
+
+            // Create the callback threads, one pair per camera (kept when reopening)
+            if (mResultExecutor == null) {
+                mResultExecutor = new CameraExecutor("camera." + mCameraId + ".results", mResultPriority);
+                mControlExecutor = new CameraExecutor("camera." + mCameraId + ".control", mControlPriority);
+                mHandler = mControlExecutor.getHandler();
             }
-            camera_characteristics_info.append("}\n");
-            Log.d(TAG, camera_characteristics_info + "\n");
-
-            // Write info to sdcard
-            FileWriter writer = null;
-            try {
-                writer = new FileWriter(Environment.getExternalStorageDirectory().getPath() + "/camapp.CameraCharacteristics.txt");
-                Log.d(TAG, "Write to file");
-                writer.write(camera_characteristics_info.toString());
-                writer.flush();
-                writer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            // Create a handler thread
-            HandlerThread handlerThread = new HandlerThread("camera");
-            handlerThread.start();
-            mHandler = new Handler(handlerThread.getLooper());
 
             if (ActivityCompat.checkSelfPermission(mContext, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
                 return false;
             }
 
             // Open the selected camera
-            mCameraManager.openCamera(cameraId, new StateHolder(), mHandler);
+            mCameraManager.openCamera(mCameraId, mControlExecutor, new StateHolder());
 
         } catch (CameraAccessException cameraAccessException) {
             cameraAccessException.printStackTrace();
+            return false;
         }
         return true;
     }
 
-    public void registerSurface(Surface output, int width, int height) {
-        mSurfaces.add(new SurfaceData(output, width, height));
+    /**
+     * Reopens the camera when it is disconnected or reports an error (default on). The
+     * session is rebuilt with the registered surfaces.
+     */
+    public void setRecovery(boolean enable) {
+        mRecovery = enable;
+    }
+
+    public OutageLog getOutages() {
+        return mOutages;
+    }
+
+    /**
+     * Sets the android.os.Process priorities of the capture result thread and of the
+     * session/device control thread. Takes effect when the camera is opened.
+     */
+    public void setCallbackPriorities(int resultPriority, int controlPriority) {
+        mResultPriority = resultPriority;
+        mControlPriority = controlPriority;
+    }
+
+    /**
+     * Delay between the framework delivering a capture callback and it running, or null
+     * before the camera is opened.
+     */
+    public LatencyHistogram getResultLatency() {
+        CameraExecutor executor = mResultExecutor;
+        return (executor != null) ? executor.getLatency() : null;
+    }
+
+    /**
+     * Same for the session and device state callbacks.
+     */
+    public LatencyHistogram getControlLatency() {
+        CameraExecutor executor = mControlExecutor;
+        return (executor != null) ? executor.getLatency() : null;
+    }
+
+    // Drops the lost device and its session, and schedules a reopen
+    private void onCameraLost(CameraDevice camera, String cause) {
+        synchronized (lock) {
+            if (mCameraDevice != null && mCameraDevice != camera) {
+                // An old device, already replaced
+                return;
+            }
+            camera.close();
+            mCameraDevice = null;
+            mSession = null;
+            mConvergence = null;
+            mOpening = false;
+            synchronized (mRequestLock) {
+                mCameraReady = false;
+                mRepeatingBuilder = null;
+                failPendingUpdate("camera lost");
+            }
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCameraLost();
+            }
+            if (mClients.isEmpty() || !mRecovery) {
+                return;
+            }
+            mOutages.start(cause);
+            scheduleReopen();
+        }
+    }
+
+    private void scheduleReopen() {
+        if (mReopenAttempts >= MAX_REOPEN_ATTEMPTS) {
+            mOutages.giveUp();
+            mReopenAttempts = 0;
+            return;
+        }
+        long delayMs = Math.min(REOPEN_INITIAL_DELAY_MS << mReopenAttempts, REOPEN_MAX_DELAY_MS);
+        mReopenAttempts++;
+        Log.d(TAG, "Reopen camera " + mCameraId + " in " + delayMs + " ms, attempt " + mReopenAttempts);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (mClients.isEmpty() || mCameraDevice != null || mOpening) {
+                        return;
+                    }
+                    mOutages.onAttempt();
+                    mOpening = true;
+                    if (!openCamera()) {
+                        mOpening = false;
+                        scheduleReopen();
+                    }
+                }
+            }
+        }, delayMs);
+    }
+
+    private static String errorToString(int error) {
+        switch (error) {
+            case CameraDevice.StateCallback.ERROR_CAMERA_IN_USE:
+                return "camera_in_use";
+            case CameraDevice.StateCallback.ERROR_MAX_CAMERAS_IN_USE:
+                return "max_cameras_in_use";
+            case CameraDevice.StateCallback.ERROR_CAMERA_DISABLED:
+                return "camera_disabled";
+            case CameraDevice.StateCallback.ERROR_CAMERA_DEVICE:
+                return "camera_device";
+            case CameraDevice.StateCallback.ERROR_CAMERA_SERVICE:
+                return "camera_service";
+            default:
+                return "error_" + error;
+        }
+    }
+
+    /**
+     * One user of the camera. Every client registers its own outputs, startup timelines and
+     * drop detectors, and takes only those away when it closes: the streams of the other
+     * clients keep running.
+     */
+    public class Client {
+        final Vector<SurfaceData> mClientSurfaces = new Vector<>();
+        final Vector<StartupTimeline> mClientTimelines = new Vector<>();
+        final Vector<FrameDropDetector> mClientDropDetectors = new Vector<>();
+        final Vector<AnalysisStage> mClientStages = new Vector<>();
+        boolean mClosed = false;
+
+        /**
+         * The shared camera, for the settings that apply to all the clients.
+         */
+        public CameraSource getCamera() {
+            return CameraSource.this;
+        }
+
+        public SurfaceData registerSurface(Surface output, int width, int height) {
+            return registerSurface(output, width, height, null);
+        }
+
+        /**
+         * Registers an output surface. If physicalCameraId is set the stream is taken from
+         * that physical camera behind this (logical) camera. Call start() to add it to a
+         * running session.
+         */
+        public SurfaceData registerSurface(Surface output, int width, int height, String physicalCameraId) {
+            SurfaceData data = new SurfaceData(output, width, height, physicalCameraId);
+            synchronized (lock) {
+                mClientSurfaces.add(data);
+                mSurfaces.add(data);
+            }
+            return data;
+        }
+
+        /**
+         * Registers an output whose surface does not exist yet, so the camera can be opened
+         * and the session configured while the consumer (e.g. the GL input SurfaceTexture) is
+         * being set up. The size must be a SurfaceTexture output size, see
+         * choosePreviewSize(). Pass the surface to setDeferredSurface() once it exists.
+         */
+        public SurfaceData registerDeferredSurface(int width, int height, String physicalCameraId) {
+            return registerSurface(null, width, height, physicalCameraId);
+        }
+
+        /**
+         * Provides the surface of a deferred output. If the session is already configured
+         * its output configuration is finalized, and streaming starts when no other output
+         * is missing.
+         */
+        public void setDeferredSurface(SurfaceData data, Surface surface) {
+            CameraSource.this.setDeferredSurface(data, surface);
+        }
+
+        /**
+         * Stops streaming into one output of this client. The other outputs keep streaming.
+         */
+        public void unregisterSurface(SurfaceData data) {
+            synchronized (lock) {
+                if (mClientSurfaces.remove(data)) {
+                    removeSurfaces(Collections.singletonList(data));
+                }
+            }
+        }
+
+        public void addStartupTimeline(StartupTimeline timeline) {
+            synchronized (lock) {
+                mClientTimelines.add(timeline);
+                mTimelines.add(timeline);
+                if (mCameraDevice != null) {
+                    // Another client opened it already
+                    timeline.mark(StartupTimeline.Stage.CAMERA_OPENED);
+                }
+            }
+        }
+
+        /**
+         * Reports the capture side (started, failed and lost frames) of every session to
+         * detector.
+         */
+        public void addDropDetector(FrameDropDetector detector) {
+            synchronized (lock) {
+                mClientDropDetectors.add(detector);
+                mDropDetectors.add(detector);
+            }
+        }
+
+        /**
+         * Adds a YUV_420_888 output analyzed on the CPU, see AnalysisStage. The size must be
+         * a YUV_420_888 output size, see chooseOutputSize(). Call start() to add it to a
+         * running session.
+         */
+        public AnalysisStage registerAnalysis(int width, int height, AnalysisStage.Analyzer analyzer) {
+            AnalysisStage stage = new AnalysisStage(width, height, AnalysisStage.DEFAULT_MAX_IMAGES, analyzer);
+            synchronized (lock) {
+                mClientStages.add(stage);
+            }
+            registerSurface(stage.getSurface(), width, height);
+            return stage;
+        }
+
+        /**
+         * Opens the camera, or adds the new outputs of this client to the running session.
+         * In surface sharing mode they join it in place. Otherwise the session has to be
+         * rebuilt, which is only done if no other client streams yet: a new stream cannot be
+         * added to a session without reconfiguring it. Register the outputs of every client
+         * before the camera is open instead, e.g. with registerDeferredSurface().
+         *
+         * @return false if the outputs were not added, they stay registered for the next
+         * session
+         */
+        public boolean start() {
+            synchronized (lock) {
+                if (mCameraDevice == null) {
+                    if (!mOpening) {
+                        mOpening = true;
+                        openCamera();
+                    }
+                    return true;
+                }
+                Vector<SurfaceData> added = new Vector<>();
+                for (SurfaceData data : mClientSurfaces) {
+                    if (data.mConfig == null) {
+                        added.add(data);
+                    }
+                }
+                if (added.isEmpty() || attachSurfaces(added)) {
+                    return true;
+                }
+                if (mSession != null && hasOtherOutputs(this)) {
+                    Log.e(TAG, "Camera " + mCameraId + " is streaming to another client, " + added.size() +
+                            " output(s) need a new session and were not added");
+                    return false;
+                }
+                startCapture();
+                return true;
+            }
+        }
+
+        /**
+         * Takes the outputs of this client away. The camera is closed with the last client.
+         */
+        public void close() {
+            SurfaceRemoval removal;
+            Vector<AnalysisStage> stages;
+            synchronized (lock) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                removal = removeClient(this);
+                stages = new Vector<>(mClientStages);
+                mClientStages.clear();
+            }
+            // Outside the lock, the capture callbacks take it
+            if (removal != null && !removal.await(REMOVAL_TIMEOUT_MS)) {
+                Log.w(TAG, "Outputs still targeted after " + REMOVAL_TIMEOUT_MS + " ms");
+            }
+            // Not written by the camera anymore
+            for (AnalysisStage stage : stages) {
+                Log.d(TAG, stage.toString());
+                stage.release();
+            }
+        }
+    }
+
+    // True if the session has outputs of clients other than client. Call with lock held.
+    private boolean hasOtherOutputs(Client client) {
+        for (SurfaceData data : mSurfaces) {
+            if (data.mConfig != null && !client.mClientSurfaces.contains(data)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public static void start() {
-        mCameraSource.openCamera();
+    // See Client.setDeferredSurface()
+    void setDeferredSurface(SurfaceData data, Surface surface) {
+        synchronized (lock) {
+            data.mSurface = surface;
+            CameraCaptureSession session = mSession;
+            if (session == null || data.mDeferredConfig == null) {
+                // Not configured yet, onConfigured() or startCapture() will use the surface
+                return;
+            }
+            finalizeDeferredSurfaces(session);
+            if (!hasPendingSurfaces()) {
+                startStreaming(session);
+            }
+        }
+    }
+
+    // Adds the surfaces that arrived to their deferred output configurations
+    private void finalizeDeferredSurfaces(CameraCaptureSession session) {
+        Vector<OutputConfiguration> ready = new Vector<>();
+        for (SurfaceData data : mSurfaces) {
+            if (data.mSurface != null && data.mDeferredConfig != null) {
+                data.mDeferredConfig.addSurface(data.mSurface);
+                ready.add(data.mDeferredConfig);
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        try {
+            session.finalizeOutputConfigurations(ready);
+            for (SurfaceData data : mSurfaces) {
+                if (ready.contains(data.mDeferredConfig)) {
+                    Log.d(TAG, "Finalized deferred surface: " + data.mSurface);
+                    data.mDeferredConfig = null;
+                }
+            }
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // True while a deferred output has no surface or is not finalized
+    private boolean hasPendingSurfaces() {
+        for (SurfaceData data : mSurfaces) {
+            if (data.mSurface == null || data.mDeferredConfig != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the output size of format closest to width x height.
+     */
+    public Size chooseOutputSize(int format, int width, int height) {
+        StreamPlanner planner = createStreamPlanner();
+        Size[] sizes = (planner != null) ? planner.getOutputSizes(format) : null;
+        if (sizes == null || sizes.length == 0) {
+            return new Size(width, height);
+        }
+        Size bestSize = null;
+        long bestDiff = Long.MAX_VALUE;
+        for (Size size : sizes) {
+            long diff = Math.abs((long) size.getWidth() * size.getHeight() - (long) width * height);
+            if (diff < bestDiff) {
+                bestDiff = diff;
+                bestSize = size;
+            }
+        }
+        return bestSize;
+    }
+
+    /**
+     * True if the sensor timestamps are in the SystemClock.elapsedRealtimeNanos() time base,
+     * else they are taken as System.nanoTime() (the usual UNKNOWN source).
+     */
+    public boolean isRealtimeTimestamp() {
+        CameraCharacteristicsCache.Entry characteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+        return characteristics != null &&
+                characteristics.mTimestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    // Aspect ratios this close count as the same, e.g. 1920x1080 and 1280x720
+    private static final double ASPECT_TOLERANCE = 0.01;
+
+    /**
+     * Returns the SurfaceTexture output size closest to a view of width x height, among the
+     * sizes of the same aspect ratio if there is any. The view size is turned to the sensor
+     * orientation first, displayRotation being the display rotation in degrees.
+     */
+    public Size choosePreviewSize(int width, int height, int displayRotation) {
+        CameraCharacteristicsCache.Entry characteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+        if (characteristics == null || characteristics.mPreviewSizes.length == 0) {
+            return new Size(width, height);
+        }
+        if ((characteristics.mSensorOrientation + displayRotation) % 180 != 0) {
+            int tmp = width;
+            width = height;
+            height = tmp;
+        }
+        double aspect = (double) width / height;
+        Size bestSize = null;
+        long bestDiff = Long.MAX_VALUE;
+        boolean bestMatches = false;
+        for (Size size : characteristics.mPreviewSizes) {
+            double sizeAspect = (double) size.getWidth() / size.getHeight();
+            boolean matches = Math.abs(sizeAspect - aspect) <= aspect * ASPECT_TOLERANCE;
+            if (bestMatches && !matches) {
+                continue;
+            }
+            long diff = Math.abs((long) size.getWidth() * size.getHeight() - (long) width * height);
+            if ((matches && !bestMatches) || diff < bestDiff) {
+                bestDiff = diff;
+                bestSize = size;
+                bestMatches = matches;
+            }
+        }
+        return bestSize;
+    }
+
+    private void markStage(StartupTimeline.Stage stage) {
+        for (StartupTimeline timeline : mTimelines) {
+            timeline.mark(stage);
+        }
+    }
+
+    /**
+     * Switches to a constrained high speed session. Picks the high speed video size closest to
+     * width x height that supports fps, preferring a fixed [fps, fps] range.
+     * <p>
+     * All the registered surfaces must use the returned size.
+     *
+     * @return the selected size, or null if the camera has no high speed mode for fps
+     */
+    public Size setHighSpeed(int width, int height, float fps) {
+        CameraCharacteristicsCache.Entry characteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+        if (characteristics == null) {
+            return null;
+        }
+        Size bestSize = null;
+        Range<Integer> bestRange = null;
+        long bestDiff = Long.MAX_VALUE;
+        for (int i = 0; i < characteristics.mHighSpeedSizes.length; i++) {
+            Size size = characteristics.mHighSpeedSizes[i];
+            // [fps, fps] if there is one, else the narrowest range around fps
+            Range<Integer> range = null;
+            for (Range<Integer> r : characteristics.mHighSpeedFpsRanges[i]) {
+                if (fps < r.getLower() || fps > r.getUpper()) {
+                    continue;
+                }
+                if (r.getLower() == fps && r.getUpper() == fps) {
+                    range = r;
+                    break;
+                }
+                if (range == null || r.getUpper() - r.getLower() < range.getUpper() - range.getLower()) {
+                    range = r;
+                }
+            }
+            if (range == null) {
+                continue;
+            }
+            long diff = Math.abs((long) size.getWidth() * size.getHeight() - (long) width * height);
+            if (diff < bestDiff) {
+                bestDiff = diff;
+                bestSize = size;
+                bestRange = range;
+            }
+        }
+        if (bestSize == null) {
+            Log.e(TAG, "No high speed configuration for " + fps + " fps on camera " + mCameraId);
+            return null;
+        }
+        Log.d(TAG, "High speed: " + bestSize + " @ " + bestRange);
+        mHighSpeed = true;
+        mHighSpeedFpsRange = bestRange;
+        mFramerateTarget = fps;
+        return bestSize;
+    }
+
+    public boolean isHighSpeed() {
+        return mHighSpeed;
+    }
+
+    /**
+     * Lets the HAL write one stream into several surfaces: registered surfaces with the same
+     * size and physical camera are put in one shared OutputConfiguration. Not available in
+     * high speed mode.
+     */
+    public void setSurfaceSharing(boolean enable) {
+        mSurfaceSharing = enable;
+    }
+
+    public boolean isSurfaceSharing() {
+        return mSurfaceSharing;
+    }
+
+    private int getSessionType() {
+        return mHighSpeed ? SessionConfiguration.SESSION_HIGH_SPEED : SessionConfiguration.SESSION_REGULAR;
     }
 
     private boolean startCapture() {
         try {
             mOutputConfigs = new Vector<>();
-
+            boolean sharing = mSurfaceSharing && !mHighSpeed;
+            if (mSurfaceSharing && mHighSpeed) {
+                Log.w(TAG, "Surface sharing is not available in high speed mode");
+            }
+            mSharedConfigs = new HashMap<>();
+            dropRemovals();
+            synchronized (mRequestLock) {
+                failPendingUpdate("session rebuilt");
+            }
 
             for (SurfaceData data : mSurfaces) {
+                data.mDeferredConfig = null;
+                if (data.mSurface == null) {
+                    Log.d(TAG, "Add deferred config: " + data.mWidth + "x" + data.mHeight);
+                    OutputConfiguration outconfig = new OutputConfiguration(new Size(data.mWidth, data.mHeight), SurfaceTexture.class);
+                    if (data.mPhysicalCameraId != null) {
+                        outconfig.setPhysicalCameraId(data.mPhysicalCameraId);
+                    }
+                    data.mDeferredConfig = outconfig;
+                    data.mConfig = outconfig;
+                    mOutputConfigs.add(outconfig);
+                    continue;
+                }
+                String key = data.getKey();
+                OutputConfiguration shared = mSharedConfigs.get(key);
+                if (shared != null && shared.getSurfaces().size() < shared.getMaxSharedSurfaceCount()) {
+                    Log.d(TAG, "Share config surface: " + data.mSurface + ", " + data.mHeight);
+                    shared.addSurface(data.mSurface);
+                    data.mConfig = shared;
+                    continue;
+                }
                 Log.d(TAG, "Add config surface: " + data.mSurface + ", " + data.mHeight);
                 OutputConfiguration outconfig = new OutputConfiguration(data.mSurface);
+                if (data.mPhysicalCameraId != null) {
+                    outconfig.setPhysicalCameraId(data.mPhysicalCameraId);
+                }
+                if (sharing) {
+                    outconfig.enableSurfaceSharing();
+                    mSharedConfigs.put(key, outconfig);
+                }
+                data.mConfig = outconfig;
                 mOutputConfigs.add(outconfig);
             }
-            SessionConfiguration config = new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+            SessionConfiguration config = new SessionConfiguration(getSessionType(),
                     mOutputConfigs,
-                    new CamExec(),
+                    mControlExecutor,
                     new CamState());
 
+            if (!isSessionConfigurationSupported(config)) {
+                Log.e(TAG, "Session configuration is not supported by camera " + mCameraId);
+                return false;
+            }
             mCameraDevice.createCaptureSession(config);
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -190,12 +981,45 @@ public class CameraSource {
         return true;
     }
 
+    // Asks the camera before trying, a failed session attempt costs much more. Sessions
+    // with deferred outputs cannot be checked.
+    private boolean isSessionConfigurationSupported(SessionConfiguration config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return true;
+        }
+        for (SurfaceData data : mSurfaces) {
+            if (data.mSurface == null) {
+                return true;
+            }
+        }
+        try {
+            return mCameraDevice.isSessionConfigurationSupported(config);
+        } catch (CameraAccessException | UnsupportedOperationException | IllegalArgumentException e) {
+            Log.w(TAG, "Cannot check session configuration: " + e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a planner for the outputs of this camera. If the camera is open, combinations
+     * outside the mandatory list are checked with the camera itself.
+     */
+    public StreamPlanner createStreamPlanner() {
+        CameraCharacteristicsCache.Entry characteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+        if (characteristics == null) {
+            return null;
+        }
+        StreamPlanner planner = new StreamPlanner(characteristics);
+        planner.setDevice(mCameraDevice);
+        return planner;
+    }
+
     private void updateParameters() {
         try {
             mSession.abortCaptures();
-            SessionConfiguration config = new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+            SessionConfiguration config = new SessionConfiguration(getSessionType(),
                     mOutputConfigs,
-                    new CamExec(),
+                    mControlExecutor,
                     new CamState());
             mCameraDevice.createCaptureSession(config);
         } catch (CameraAccessException e) {
@@ -208,29 +1032,24 @@ public class CameraSource {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
             Log.d(TAG, "Camera opened: " + camera.getId());
-            mCameraDevice = camera;
-            startCapture();
+            synchronized (lock) {
+                mCameraDevice = camera;
+                mOpening = false;
+                markStage(StartupTimeline.Stage.CAMERA_OPENED);
+                startCapture();
+            }
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
             Log.d(TAG, "Camera disconnected: " + camera.getId());
-            mCameraDevice = null;
+            onCameraLost(camera, "disconnected");
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
             Log.d(TAG, "Camera error: " + camera.getId() + ", Error: " + error);
-        }
-    }
-
-
-    class CamExec implements Executor {
-
-        @Override
-        public void execute(Runnable command) {
-            //   Log.d(TAG, "Exec: " + command);
-            command.run();
+            onCameraLost(camera, errorToString(error));
         }
     }
 
@@ -262,105 +1081,257 @@ public class CameraSource {
     }
 
     Object mRequestLock = new Object();
+    // State of the running repeating request, kept for live updates
+    CaptureRequest.Builder mRepeatingBuilder = null;
+    Range<Integer>[] mFpsRanges = null;
+    CapResult mCapResult = null;
+    volatile ParameterUpdate mPendingUpdate = null;
+    // Sequence id of the last repeating request submitted, -1 if none
+    volatile int mRepeatingSequenceId = -1;
+    // Outputs out of the repeating request, still in the session configuration
+    final CopyOnWriteArrayList<SurfaceRemoval> mRemovals = new CopyOnWriteArrayList<>();
+
+    void fillCaptureRequest(@NonNull CaptureRequest.Builder captureRequest, Range<Integer>[] fpsRanges) {
+        boolean turnOffAE = false;
+        if (mSensitivityTarget > 0) {
+            Log.d(TAG, "sensor_sensitivity: " + mSensitivityTarget);
+            captureRequest.set(CaptureRequest.SENSOR_SENSITIVITY, mSensitivityTarget);
+            turnOffAE = true;
+        }
+        if (mFrameExposureTimeTargetUsec > 0) {
+            long sensorExposureTime = mFrameExposureTimeTargetUsec * 1000;  // ns
+            Log.d(TAG, "sensor_exposure_time: " + sensorExposureTime);
+            Log.d(TAG, "sensor_exposure_time_ms: " + sensorExposureTime / 1000000.0);
+            captureRequest.set(CaptureRequest.SENSOR_EXPOSURE_TIME, Long.valueOf(sensorExposureTime));
+            turnOffAE = true;
+        }
+        if (mFrameDurationTargetUsec > 0) {
+            long sensorFrameDuration = mFrameDurationTargetUsec * 1000;
+            Log.d(TAG, "sensor_frame_duration: " + sensorFrameDuration);
+            Log.d(TAG, "sensor_frame_duration_ms: " + sensorFrameDuration / 1000000.0);
+            captureRequest.set(CaptureRequest.SENSOR_FRAME_DURATION, Long.valueOf(sensorFrameDuration));
+            turnOffAE = true;
+        }
+        if (mFramerateTarget > 0) {
+            Range fps = getRange(mFramerateTarget, fpsRanges);
+            Log.d(TAG, "control_ae_target_fps_range: " + fps);
+            captureRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fps);
+        }
+        if (turnOffAE) {
+            captureRequest.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+            Log.d(TAG, "control_ae_mode: off");
+        }
+    }
 
-    class CamState extends CameraCaptureSession.StateCallback {
-        public CamState() {
-            super();
+    // Builds the repeating request(s): the whole sweep, or a single request
+    List<CaptureRequest> buildRepeating(CaptureRequest.Builder captureRequest) {
+        if (mSweep != null) {
+            return mSweep.buildRequests(captureRequest);
+        }
+        return Collections.singletonList(captureRequest.build());
+    }
+
+    // Requests built from mRepeatingBuilder hold the values of a pending update too
+    private void carryUpdate(List<CaptureRequest> requests) {
+        ParameterUpdate update = mPendingUpdate;
+        if (update != null) {
+            update.addRequests(requests);
+        }
+    }
+
+    // The session of the pending update went away. Call with mRequestLock held.
+    private void failPendingUpdate(String cause) {
+        ParameterUpdate update = mPendingUpdate;
+        mPendingUpdate = null;
+        if (update != null) {
+            update.fail(cause);
+        }
+    }
+
+    void submitRepeating(CameraCaptureSession session, List<CaptureRequest> requests) throws CameraAccessException {
+        carryUpdate(requests);
+        if (requests.size() > 1) {
+            Log.d(TAG, "Capture burst of " + requests.size() + " continuously!");
+            mRepeatingSequenceId = session.setRepeatingBurstRequests(requests, mResultExecutor, mCapResult);
+        } else {
+            Log.d(TAG, "Capture continuously!");
+            mRepeatingSequenceId = session.setSingleRepeatingRequest(requests.get(0), mResultExecutor, mCapResult);
+        }
+    }
+
+    /**
+     * Applies the current fps, sensitivity, exposure time and frame duration targets to the
+     * running session by replacing its repeating request. Unlike a session rebuild this
+     * does not stop the stream. listener is called once the new values are reported back.
+     *
+     * @return false if there is no running session to update
+     */
+    public boolean applyParameters(ParameterUpdate.Listener listener) {
+        synchronized (mRequestLock) {
+            CameraCaptureSession session = mSession;
+            if (session == null || mRepeatingBuilder == null) {
+                Log.w(TAG, "No running session to update");
+                return false;
+            }
+            if (mHighSpeed) {
+                Log.w(TAG, "Live updates are not supported in high speed mode");
+                return false;
+            }
+            mManualSettings = true;
+            fillCaptureRequest(mRepeatingBuilder, mFpsRanges);
+            Range<Integer> fpsRange = (mFramerateTarget > 0) ? getRange(mFramerateTarget, mFpsRanges) : null;
+            List<CaptureRequest> requests = buildRepeating(mRepeatingBuilder);
+            // Swept values are not checked, they change every frame
+            mPendingUpdate = new ParameterUpdate(requests,
+                    (mSweep == null) ? mSensitivityTarget : -1,
+                    (mSweep == null && mFrameExposureTimeTargetUsec > 0) ? mFrameExposureTimeTargetUsec * 1000L : -1,
+                    (mSweep == null && mFrameDurationTargetUsec > 0) ? mFrameDurationTargetUsec * 1000L : -1,
+                    fpsRange, listener);
+            try {
+                submitRepeating(session, requests);
+            } catch (CameraAccessException | IllegalStateException e) {
+                // e.g. the session was closed by a rebuild meanwhile
+                e.printStackTrace();
+                failPendingUpdate(e.toString());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Submits the 3A startup steps on the running repeating request. Every step replaces
+     * the repeating request, so the stream never stops while 3A converges.
+     */
+    class ConvergenceDriver implements ConvergenceStateMachine.Driver {
+        CameraCaptureSession mDriverSession;
+
+        ConvergenceDriver(CameraCaptureSession session) {
+            mDriverSession = session;
+        }
+
+        @Override
+        public void submitConverging() throws CameraAccessException {
+            synchronized (mRequestLock) {
+                mRepeatingBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+                CaptureRequest trigger = mRepeatingBuilder.build();
+                mRepeatingBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+                CaptureRequest request = mRepeatingBuilder.build();
+                carryUpdate(Arrays.asList(trigger, request));
+                mDriverSession.captureSingleRequest(trigger, mResultExecutor, mCapResult);
+                mRepeatingSequenceId = mDriverSession.setSingleRepeatingRequest(request, mResultExecutor, mCapResult);
+            }
+        }
+
+        @Override
+        public void submitAwbLock() throws CameraAccessException {
+            synchronized (mRequestLock) {
+                mRepeatingBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+                CaptureRequest request = mRepeatingBuilder.build();
+                carryUpdate(Collections.singletonList(request));
+                mRepeatingSequenceId = mDriverSession.setSingleRepeatingRequest(request, mResultExecutor, mCapResult);
+            }
         }
 
-        public void fillCaptureRequest(@NonNull CaptureRequest.Builder captureRequest, Range<Integer>[] fpsRanges) {
-            boolean turnOffAE = false;
-            if (mSensitivityTarget > 0) {
-                Log.d(TAG, "sensor_sensitivity: " + mSensitivityTarget);
-                captureRequest.set(CaptureRequest.SENSOR_SENSITIVITY, mSensitivityTarget);
-                turnOffAE = true;
+        @Override
+        public void submitFinal() throws CameraAccessException {
+            synchronized (mRequestLock) {
+                if (mManualSettings) {
+                    fillCaptureRequest(mRepeatingBuilder, mFpsRanges);
+                }
+                submitRepeating(mDriverSession, buildRepeating(mRepeatingBuilder));
+                mCameraReady = true;
             }
-            if (mFrameExposureTimeTargetUsec > 0) {
-                long sensorExposureTime = mFrameExposureTimeTargetUsec * 1000;  // ns
-                Log.d(TAG, "sensor_exposure_time: " + sensorExposureTime);
-                Log.d(TAG, "sensor_exposure_time_ms: " + sensorExposureTime / 1000000.0);
-                captureRequest.set(CaptureRequest.SENSOR_EXPOSURE_TIME, Long.valueOf(sensorExposureTime));
-                turnOffAE = true;
+        }
+    }
+
+    /**
+     * Returns the 3A convergence of the current session, or null before it is configured.
+     */
+    public ConvergenceStateMachine getConvergence() {
+        return mConvergence;
+    }
+
+    // Starts the repeating request (and the 3A sequence) once every output has its surface
+    private void startStreaming(CameraCaptureSession session) {
+        try {
+            CaptureRequest.Builder captureRequest
+                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            CapResult capRes = new CapResult();
+            CameraCharacteristicsCache.Entry cameraCharacteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+            Range<Integer>[] fpsRanges = null;
+            if (cameraCharacteristics != null) {
+                fpsRanges = cameraCharacteristics.mFpsRanges;
+                mHasAwbLock = cameraCharacteristics.mAwbLockAvailable;
             }
-            if (mFrameDurationTargetUsec > 0) {
-                long sensorFrameDuration = mFrameDurationTargetUsec * 1000;
-                Log.d(TAG, "sensor_frame_duration: " + sensorFrameDuration);
-                Log.d(TAG, "sensor_frame_duration_ms: " + sensorFrameDuration / 1000000.0);
-                captureRequest.set(CaptureRequest.SENSOR_FRAME_DURATION, Long.valueOf(sensorFrameDuration));
-                turnOffAE = true;
+            for (SurfaceData data : mSurfaces) {
+                Log.d(TAG, "Add target surface: " + data.mSurface + ", " + data.mHeight);
+                captureRequest.addTarget(data.mSurface);
             }
-            if (mFramerateTarget > 0) {
-                Range fps = getRange(mFramerateTarget, fpsRanges);
-                Log.d(TAG, "control_ae_target_fps_range: " + fps);
-                captureRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fps);
+            captureRequest.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CameraMetadata.CONTROL_CAPTURE_INTENT_VIDEO_RECORD);
+            synchronized (mRequestLock) {
+                mRepeatingBuilder = captureRequest;
+                mFpsRanges = fpsRanges;
+                mCapResult = capRes;
+                mCameraReady = false;
             }
-            if (turnOffAE) {
-                captureRequest.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-                Log.d(TAG, "control_ae_mode: off");
+            // Streams right away, the 3A steps are driven from the capture results
+            ConvergenceStateMachine convergence = new ConvergenceStateMachine(new ConvergenceDriver(session), mHasAwbLock);
+            mConvergence = convergence;
+            convergence.start();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        mSession = session;
+    }
+
+    class CamState extends CameraCaptureSession.StateCallback {
+        public CamState() {
+            super();
+        }
+
+        // High speed sessions only take bursts built by createHighSpeedRequestList, and do not
+        // support manual sensor settings nor single 3A captures.
+        private void startHighSpeedCapture(@NonNull CameraCaptureSession session, CapResult capRes) throws CameraAccessException {
+            CaptureRequest.Builder captureRequest
+                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            for (SurfaceData data : mSurfaces) {
+                Log.d(TAG, "Add target surface: " + data.mSurface + ", " + data.mHeight);
+                captureRequest.addTarget(data.mSurface);
             }
+            captureRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mHighSpeedFpsRange);
+            List<CaptureRequest> burst = ((CameraConstrainedHighSpeedCaptureSession) session)
+                    .createHighSpeedRequestList(captureRequest.build());
+            Log.d(TAG, "Capture high speed " + mHighSpeedFpsRange + ", burst of " + burst.size());
+            mRepeatingSequenceId = session.setRepeatingBurstRequests(burst, mResultExecutor, capRes);
         }
 
         @Override
         public void onConfigured(@NonNull CameraCaptureSession session) {
             Log.d(TAG, "CameraCapture configured: " + session.toString());
+            markStage(StartupTimeline.Stage.SESSION_CONFIGURED);
 
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    boolean aeTriggered = false;
-                    boolean awbLockTriggered = false;
+            if (mHighSpeed) {
+                synchronized (lock) {
                     try {
-                        CaptureRequest.Builder captureRequest
-                                = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-                        CapResult capRes = new CapResult();
-                        CameraCharacteristics cameraCharacteristics = mCameraManager.getCameraCharacteristics(mCameraDevice.getId());
-                        Range<Integer>[] fpsRanges = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
-                        Range<Integer> sensorRange = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
-
-                        mHasAwbLock = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AWB_LOCK_AVAILABLE);
-
-                        while (!mCameraReady && mHasAwbLock) {
-
-                            for (SurfaceData data : mSurfaces) {
-                                captureRequest.addTarget(data.mSurface);
-                            }
-                            if (mAWBconverged && !awbLockTriggered) {
-                                Log.d(TAG, "Lock awb");
-                                awbLockTriggered = true;
-                                captureRequest.set(CaptureRequest.CONTROL_AWB_LOCK, true);
-                            } else if (!aeTriggered) {
-                                aeTriggered = true;
-                                captureRequest.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-                            }
-                            int capture = session.capture(captureRequest.build(), capRes, mHandler);
-                            synchronized (mRequestLock) {
-                                try {
-                                    mRequestLock.wait(WAIT_TIME_SHORT_MS);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                        for (SurfaceData data : mSurfaces) {
-                            Log.d(TAG, "Add target surface: " + data.mSurface + ", " + data.mHeight);
-                            captureRequest.addTarget(data.mSurface);
-                        }
-
-                        if (mManualSettings) {
-                            fillCaptureRequest(captureRequest, fpsRanges);
-                        }
-                        captureRequest.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CameraMetadata.CONTROL_CAPTURE_INTENT_VIDEO_RECORD);
-                        Log.d(TAG, "Capture continuously!");
-                        int capture = session.setRepeatingRequest(captureRequest.build(), capRes, mHandler);
-
+                        startHighSpeedCapture(session, new CapResult());
                     } catch (CameraAccessException e) {
                         e.printStackTrace();
                     }
                     mSession = session;
                 }
-            });
-            t.start();
-
+                return;
+            }
+            synchronized (lock) {
+                finalizeDeferredSurfaces(session);
+                if (hasPendingSurfaces()) {
+                    // Streaming starts once the deferred surfaces are finalized
+                    Log.d(TAG, "Waiting for deferred surfaces");
+                    mSession = session;
+                    return;
+                }
+                startStreaming(session);
+            }
         }
 
         @Override
@@ -407,6 +1378,9 @@ public class CameraSource {
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest captureRequest, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, captureRequest, timestamp, frameNumber);
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCaptureStarted(frameNumber, timestamp);
+            }
         }
 
         @Override
@@ -418,43 +1392,123 @@ public class CameraSource {
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest captureRequest, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, captureRequest, result);
-            if (!mCameraReady && mHasAwbLock) {
-                switch (result.get(CaptureResult.CONTROL_AWB_STATE)) {
-                    case CaptureResult.CONTROL_AWB_STATE_CONVERGED:
-                        Log.d(TAG, "awb converged.");
-                        mAWBconverged = true;
-                        break;
-                    case CaptureResult.CONTROL_AWB_STATE_LOCKED:
-                        Log.d(TAG, "awb locked.");
-                        mCameraReady = true;
-                        break;
-
-                }
-                synchronized (mRequestLock) {
-                    mRequestLock.notifyAll();
+            mTelemetry.onCaptureCompleted(result);
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            if (timestamp != null && mOutages.onFrame(timestamp, (frameDuration != null) ? frameDuration : -1)) {
+                synchronized (lock) {
+                    mReopenAttempts = 0;
                 }
             }
+            if (mSweep != null) {
+                mSweep.onCaptureCompleted(captureRequest, result);
+            }
+            ParameterUpdate update = mPendingUpdate;
+            if (update != null && update.onCaptureCompleted(captureRequest, result) && mPendingUpdate == update) {
+                mPendingUpdate = null;
+            }
+            ConvergenceStateMachine convergence = mConvergence;
+            if (convergence != null) {
+                convergence.onCaptureCompleted(result);
+            }
         }
 
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest captureRequest, @NonNull CaptureFailure failure) {
             super.onCaptureFailed(session, captureRequest, failure);
             Log.d(TAG, "onCaptureFailed, reason:" + failure.getReason() + ", " + failure.toString());
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCaptureFailed(failure);
+            }
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest captureRequest, @NonNull Surface target, long frameNumber) {
+            super.onCaptureBufferLost(session, captureRequest, target, frameNumber);
+            Log.d(TAG, "onCaptureBufferLost, frame: " + frameNumber + ", " + target);
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCaptureBufferLost(target, frameNumber);
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session, int sequenceId, long frameNumber) {
+            super.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
+            Log.d(TAG, "onCaptureSequenceCompleted, sequence: " + sequenceId + ", last frame: " + frameNumber);
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCaptureSequenceCompleted(sequenceId, frameNumber);
+            }
+            onSequenceDone(sequenceId);
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+            super.onCaptureSequenceAborted(session, sequenceId);
+            Log.d(TAG, "onCaptureSequenceAborted, sequence: " + sequenceId);
+            for (FrameDropDetector detector : mDropDetectors) {
+                detector.onCaptureSequenceAborted(sequenceId);
+            }
+            onSequenceDone(sequenceId);
         }
     }
 
-    class SurfaceData {
+    /**
+     * An output registered on the camera. A deferred output gets its surface after the session
+     * is configured.
+     */
+    public class SurfaceData {
         Surface mSurface;
         int mWidth, mHeight;
-        public SurfaceData(Surface surface, int width, int height) {
+        String mPhysicalCameraId;
+        // Deferred output configuration, until it is finalized
+        OutputConfiguration mDeferredConfig;
+        // Output configuration of the current session, null if not part of it yet
+        OutputConfiguration mConfig;
+        public SurfaceData(Surface surface, int width, int height, String physicalCameraId) {
             mSurface = surface;
             mWidth = width;
             mHeight = height;
+            mPhysicalCameraId = physicalCameraId;
+        }
+
+        // Outputs with the same key can share one stream
+        String getKey() {
+            return mWidth + "x" + mHeight + ":" + mPhysicalCameraId;
         }
     }
 
-    public static int getClientCount() {
-        return mClients;
+    /**
+     * Outputs taken out of the repeating request of a session. Once the last sequence that may
+     * target them (mLastSequenceId) is done, they are detached from the session.
+     */
+    class SurfaceRemoval {
+        final CameraCaptureSession mSession;
+        final List<SurfaceData> mRemoved;
+        final int mLastSequenceId;
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        SurfaceRemoval(CameraCaptureSession session, List<SurfaceData> removed, int lastSequenceId) {
+            mSession = session;
+            mRemoved = new ArrayList<>(removed);
+            mLastSequenceId = lastSequenceId;
+        }
+
+        /**
+         * Waits until the camera stops writing into the removed outputs. Returns false on
+         * timeout.
+         */
+        boolean await(long timeoutMs) {
+            try {
+                return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    public int getClientCount() {
+        return mClients.size();
     }
 
     public void setFps(float fps) {
@@ -462,6 +1516,10 @@ public class CameraSource {
         mFramerateTarget = fps;
     }
 
+    public float getFps() {
+        return mFramerateTarget;
+    }
+
     public void setFrameDurationUsec(int usec) {
         mManualSettings = true;
         mFrameDurationTargetUsec = usec;
@@ -472,6 +1530,23 @@ public class CameraSource {
         mFrameExposureTimeTargetUsec = usec;
     }
 
+    /**
+     * Runs a parameter sweep instead of a single repeating request. Not available in high
+     * speed mode.
+     */
+    public void setSweep(ParameterSweep sweep) {
+        mManualSettings = true;
+        mSweep = sweep;
+    }
+
+    public ParameterSweep getSweep() {
+        return mSweep;
+    }
+
+    public CaptureTelemetry getTelemetry() {
+        return mTelemetry;
+    }
+
     public void setSensitivity(int iso) {
         mManualSettings = true;
         mSensitivityTarget = iso;
@@ -0,0 +1,204 @@
+package com.facebook.camapp.utils;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Per-frame capture result telemetry, kept in a ring of preallocated primitive arrays.
+ * <p>
+ * There is a single writer (the camera handler) and any number of readers. The writer never
+ * waits: it takes the write lock of a StampedLock that readers only ever read optimistically
+ * (i.e. a seqlock). Readers copy the ring into their own Snapshot and retry if a frame was
+ * written while copying.
+ */
+public class CaptureTelemetry {
+    // Optimistic copies before a reader gives up
+    final static int MAX_SNAPSHOT_TRIES = 8;
+
+    final int mCapacity;
+    final int mMask;
+    final StampedLock mLock = new StampedLock();
+    // Total number of frames written, the next slot is mCount & mMask
+    long mCount = 0;
+
+    final long[] mFrameNumber;
+    final long[] mTimestampNs;
+    final long[] mExposureTimeNs;
+    final long[] mFrameDurationNs;
+    final int[] mSensitivity;
+    final long[] mRollingShutterSkewNs;
+    final int[] mAeState;
+    final int[] mAwbState;
+    final int[] mAfState;
+
+    /**
+     * A copy of the ring, ordered from the oldest to the newest frame. Allocate it once (see
+     * newSnapshot()) and reuse it.
+     */
+    public static class Snapshot {
+        public final long[] mFrameNumber;
+        public final long[] mTimestampNs;
+        public final long[] mExposureTimeNs;
+        public final long[] mFrameDurationNs;
+        public final int[] mSensitivity;
+        public final long[] mRollingShutterSkewNs;
+        public final int[] mAeState;
+        public final int[] mAwbState;
+        public final int[] mAfState;
+        // Valid entries, and total frames written when the copy was taken
+        public int mSize = 0;
+        public long mCount = 0;
+
+        Snapshot(int capacity) {
+            mFrameNumber = new long[capacity];
+            mTimestampNs = new long[capacity];
+            mExposureTimeNs = new long[capacity];
+            mFrameDurationNs = new long[capacity];
+            mSensitivity = new int[capacity];
+            mRollingShutterSkewNs = new long[capacity];
+            mAeState = new int[capacity];
+            mAwbState = new int[capacity];
+            mAfState = new int[capacity];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+            str.append("capture_telemetry {\n");
+            str.append("  frames: " + mCount + "\n");
+            for (int i = 0; i < mSize; i++) {
+                str.append(String.format("  frame { number: %d timestamp_ns: %d exposure_time_ns: %d " +
+                                "frame_duration_ns: %d sensitivity: %d rolling_shutter_skew_ns: %d " +
+                                "ae_state: %d awb_state: %d af_state: %d }\n",
+                        mFrameNumber[i], mTimestampNs[i], mExposureTimeNs[i], mFrameDurationNs[i],
+                        mSensitivity[i], mRollingShutterSkewNs[i], mAeState[i], mAwbState[i], mAfState[i]));
+            }
+            str.append("}\n");
+            return str.toString();
+        }
+    }
+
+    /**
+     * @param capacity number of frames kept, rounded up to a power of two
+     */
+    public CaptureTelemetry(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mFrameNumber = new long[size];
+        mTimestampNs = new long[size];
+        mExposureTimeNs = new long[size];
+        mFrameDurationNs = new long[size];
+        mSensitivity = new int[size];
+        mRollingShutterSkewNs = new long[size];
+        mAeState = new int[size];
+        mAwbState = new int[size];
+        mAfState = new int[size];
+    }
+
+    public Snapshot newSnapshot() {
+        return new Snapshot(mCapacity);
+    }
+
+    private static long getLong(TotalCaptureResult result, CaptureResult.Key<Long> key) {
+        Long value = result.get(key);
+        return (value != null) ? value : -1;
+    }
+
+    private static int getInt(TotalCaptureResult result, CaptureResult.Key<Integer> key) {
+        Integer value = result.get(key);
+        return (value != null) ? value : -1;
+    }
+
+    /**
+     * Records one completed capture. Only called from the camera handler.
+     */
+    void onCaptureCompleted(TotalCaptureResult result) {
+        // Read the result before taking the lock, to keep the write window short
+        long frameNumber = result.getFrameNumber();
+        long timestamp = getLong(result, CaptureResult.SENSOR_TIMESTAMP);
+        long exposureTime = getLong(result, CaptureResult.SENSOR_EXPOSURE_TIME);
+        long frameDuration = getLong(result, CaptureResult.SENSOR_FRAME_DURATION);
+        int sensitivity = getInt(result, CaptureResult.SENSOR_SENSITIVITY);
+        long skew = getLong(result, CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+        int aeState = getInt(result, CaptureResult.CONTROL_AE_STATE);
+        int awbState = getInt(result, CaptureResult.CONTROL_AWB_STATE);
+        int afState = getInt(result, CaptureResult.CONTROL_AF_STATE);
+
+        long stamp = mLock.writeLock();
+        try {
+            int i = (int) (mCount & mMask);
+            mFrameNumber[i] = frameNumber;
+            mTimestampNs[i] = timestamp;
+            mExposureTimeNs[i] = exposureTime;
+            mFrameDurationNs[i] = frameDuration;
+            mSensitivity[i] = sensitivity;
+            mRollingShutterSkewNs[i] = skew;
+            mAeState[i] = aeState;
+            mAwbState[i] = awbState;
+            mAfState[i] = afState;
+            mCount++;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the ring into out without blocking the writer.
+     *
+     * @return false if the writer kept updating the ring while copying
+     */
+    public boolean snapshot(Snapshot out) {
+        for (int tries = 0; tries < MAX_SNAPSHOT_TRIES; tries++) {
+            long stamp = mLock.tryOptimisticRead();
+            if (stamp == 0) {
+                // Being written right now
+                Thread.yield();
+                continue;
+            }
+            long count = mCount;
+            int size = (int) Math.min(count, mCapacity);
+            long first = count - size;
+            for (int j = 0; j < size; j++) {
+                int i = (int) ((first + j) & mMask);
+                out.mFrameNumber[j] = mFrameNumber[i];
+                out.mTimestampNs[j] = mTimestampNs[i];
+                out.mExposureTimeNs[j] = mExposureTimeNs[i];
+                out.mFrameDurationNs[j] = mFrameDurationNs[i];
+                out.mSensitivity[j] = mSensitivity[i];
+                out.mRollingShutterSkewNs[j] = mRollingShutterSkewNs[i];
+                out.mAeState[j] = mAeState[i];
+                out.mAwbState[j] = mAwbState[i];
+                out.mAfState[j] = mAfState[i];
+            }
+            if (mLock.validate(stamp)) {
+                out.mSize = size;
+                out.mCount = count;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void writeResults(String path) {
+        Snapshot snapshot = newSnapshot();
+        if (!snapshot(snapshot)) {
+            return;
+        }
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write(snapshot.toString());
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.facebook.camapp.utils;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+
+/**
+ * Non-blocking 3A startup sequence, driven from onCaptureCompleted.
+ * <p>
+ * The precapture trigger is submitted together with the streaming repeating request, the
+ * AWB lock replaces the repeating request as soon as AWB converges, and the final (manual)
+ * request replaces it once AWB is locked. No step waits for a round trip.
+ * <p>
+ * Independently of the sequence, the frames and time until AE, AWB and AF first converge
+ * are recorded, counted from start().
+ */
+public class ConvergenceStateMachine {
+    private static final String TAG = "camapp.3a";
+    // Give up locking and go on with the final request after this many frames
+    final static int MAX_CONVERGENCE_FRAMES = 90;
+
+    public enum State {
+        IDLE,
+        CONVERGING,  // precapture triggered, waiting for AWB to converge
+        LOCKING,     // AWB lock requested, waiting for AWB to report locked
+        DONE         // final request submitted
+    }
+
+    /**
+     * Submits the requests of every step, implemented by the camera source.
+     */
+    interface Driver {
+        // Precapture trigger plus the streaming repeating request
+        void submitConverging() throws CameraAccessException;
+        void submitAwbLock() throws CameraAccessException;
+        void submitFinal() throws CameraAccessException;
+    }
+
+    private final Driver mDriver;
+    private final boolean mLockAwb;
+    private State mState = State.IDLE;
+    private long mStartNs = 0;
+    private int mFrames = 0;
+    private int mStateFrames = 0;
+
+    // Frames and ms until convergence, -1 while not converged
+    int mAeFrames = -1;
+    double mAeMs = -1;
+    int mAwbFrames = -1;
+    double mAwbMs = -1;
+    int mAfFrames = -1;
+    double mAfMs = -1;
+    int mDoneFrames = -1;
+    double mDoneMs = -1;
+
+    ConvergenceStateMachine(Driver driver, boolean lockAwb) {
+        mDriver = driver;
+        mLockAwb = lockAwb;
+    }
+
+    synchronized void start() {
+        mStartNs = System.nanoTime();
+        if (mLockAwb) {
+            setState(State.CONVERGING);
+            submit(State.CONVERGING);
+        } else {
+            finish();
+        }
+    }
+
+    private void setState(State state) {
+        Log.d(TAG, mState + " -> " + state + " at frame " + mFrames);
+        mState = state;
+        mStateFrames = 0;
+    }
+
+    private void submit(State state) {
+        try {
+            switch (state) {
+                case CONVERGING:
+                    mDriver.submitConverging();
+                    break;
+                case LOCKING:
+                    mDriver.submitAwbLock();
+                    break;
+                case DONE:
+                    mDriver.submitFinal();
+                    break;
+            }
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to submit " + state + ": " + e);
+        }
+    }
+
+    private void finish() {
+        setState(State.DONE);
+        mDoneFrames = mFrames;
+        mDoneMs = (System.nanoTime() - mStartNs) / 1000000.0;
+        submit(State.DONE);
+    }
+
+    synchronized void onCaptureCompleted(TotalCaptureResult result) {
+        if (mState == State.IDLE) {
+            return;
+        }
+        mFrames++;
+        mStateFrames++;
+        double elapsedMs = (System.nanoTime() - mStartNs) / 1000000.0;
+
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        Integer afMode = result.get(CaptureResult.CONTROL_AF_MODE);
+        if (mAeFrames < 0 && aeState != null &&
+                (aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                 aeState == CaptureResult.CONTROL_AE_STATE_LOCKED ||
+                 aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED)) {
+            mAeFrames = mFrames;
+            mAeMs = elapsedMs;
+            Log.d(TAG, "ae converged.");
+        }
+        if (mAwbFrames < 0 && awbState != null &&
+                (awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED ||
+                 awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED)) {
+            mAwbFrames = mFrames;
+            mAwbMs = elapsedMs;
+            Log.d(TAG, "awb converged.");
+        }
+        if (mAfFrames < 0 &&
+                ((afMode != null && afMode == CaptureResult.CONTROL_AF_MODE_OFF) ||
+                 (afState != null &&
+                  (afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+                   afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED)))) {
+            mAfFrames = mFrames;
+            mAfMs = elapsedMs;
+            Log.d(TAG, "af converged.");
+        }
+
+        switch (mState) {
+            case CONVERGING:
+                if (mAwbFrames >= 0) {
+                    Log.d(TAG, "Lock awb");
+                    setState(State.LOCKING);
+                    submit(State.LOCKING);
+                } else if (mStateFrames > MAX_CONVERGENCE_FRAMES) {
+                    Log.w(TAG, "awb did not converge after " + mStateFrames + " frames");
+                    finish();
+                }
+                break;
+            case LOCKING:
+                if (awbState != null && awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED) {
+                    Log.d(TAG, "awb locked.");
+                    finish();
+                } else if (mStateFrames > MAX_CONVERGENCE_FRAMES) {
+                    Log.w(TAG, "awb did not lock after " + mStateFrames + " frames");
+                    finish();
+                }
+                break;
+            default:
+                break;
+        }
+        if (mState == State.DONE && isConverged()) {
+            Log.d(TAG, toString());
+            // Nothing left to measure
+            mState = State.IDLE;
+        }
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean isConverged() {
+        return mAeFrames >= 0 && mAwbFrames >= 0 && mAfFrames >= 0;
+    }
+
+    public synchronized double getAeMs() {
+        return mAeMs;
+    }
+
+    public synchronized double getAwbMs() {
+        return mAwbMs;
+    }
+
+    public synchronized double getAfMs() {
+        return mAfMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("convergence { ae_frames: %d ae_ms: %.2f awb_frames: %d awb_ms: %.2f " +
+                        "af_frames: %d af_ms: %.2f final_request_frames: %d final_request_ms: %.2f }",
+                mAeFrames, mAeMs, mAwbFrames, mAwbMs, mAfFrames, mAfMs, mDoneFrames, mDoneMs);
+    }
+}
@@ -12,4 +12,21 @@ public class FrameBuffer {
             mBufferId = id;
             mInfo = info;
         }
+
+        // Empty pool slot, filled with set()
+        FrameBuffer() {
+            mInfo = new MediaCodec.BufferInfo();
+        }
+
+        // Copies the buffer info, the caller keeps its own
+        void set(MediaCodec codec, int id, MediaCodec.BufferInfo info) {
+            mCodec = codec;
+            mBufferId = id;
+            mInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        }
+
+        void clear() {
+            mCodec = null;
+            mBufferId = -1;
+        }
 }
@@ -0,0 +1,109 @@
+package com.facebook.camapp.utils;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Decoded buffers waiting to be rendered, in a ring of preallocated FrameBuffer slots. The
+ * decoder fills the slot at the tail, the renderer peeks at the head and recycles it once the
+ * buffer went back to the codec. Nothing is allocated after construction.
+ * <p>
+ * One producer thread (the decoder callback) and one consumer thread (the renderer). A full
+ * pool drops the new buffer: it is released to the codec without rendering.
+ * <p>
+ * The ring has no CAS on the tail, so a second decoder offering from another thread would
+ * corrupt it. The first thread to offer owns the producer side, any other one gets an
+ * IllegalStateException.
+ */
+public class FrameBufferPool {
+    private static final String TAG = "camapp.bufpool";
+
+    final FrameBuffer[] mSlots;
+    final int mMask;
+    // Written by the consumer only
+    volatile long mHead = 0;
+    // Written by the producer only
+    volatile long mTail = 0;
+    volatile long mDropped = 0;
+    // The decoder thread, set by the first offer()
+    volatile Thread mProducer = null;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public FrameBufferPool(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mSlots = new FrameBuffer[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new FrameBuffer();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Producer side, always from the same thread. Returns false if the pool was full and the
+     * buffer was dropped.
+     */
+    public boolean offer(MediaCodec codec, int id, MediaCodec.BufferInfo info) {
+        Thread current = Thread.currentThread();
+        if (mProducer == null) {
+            mProducer = current;
+        } else if (mProducer != current) {
+            throw new IllegalStateException("Buffers from " + current.getName() +
+                    ", the pool belongs to the decoder on " + mProducer.getName());
+        }
+        long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            mDropped++;
+            Log.w(TAG, "No free slot, dropping buffer " + id + " pts: " + info.presentationTimeUs);
+            try {
+                codec.releaseOutputBuffer(id, false);
+            } catch (IllegalStateException ise) {
+                // Codec stopped meanwhile
+            }
+            return false;
+        }
+        mSlots[(int) tail & mMask].set(codec, id, info);
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns the oldest buffer, still owned by the pool, or null.
+     */
+    public FrameBuffer peek() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        return mSlots[(int) head & mMask];
+    }
+
+    /**
+     * Consumer side. Gives the slot returned by peek() back to the producer.
+     */
+    public void recycle() {
+        long head = mHead;
+        if (head == mTail) {
+            return;
+        }
+        mSlots[(int) head & mMask].clear();
+        mHead = head + 1;
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public long getDropped() {
+        return mDropped;
+    }
+}
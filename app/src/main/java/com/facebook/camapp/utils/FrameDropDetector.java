@@ -0,0 +1,270 @@
+package com.facebook.camapp.utils;
+
+import android.hardware.camera2.CaptureFailure;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds where the frames of one camera output get lost.
+ * <p>
+ * The camera side (onCaptureStarted, onCaptureFailed, onCaptureBufferLost) tells which frames
+ * were captured and which ones the HAL gave up on. The GL side (OutputMultiplier) tells which
+ * sensor timestamps were latched with updateTexImage and on how many outputs they were drawn.
+ * A frame is then dropped:
+ * <ul>
+ * <li>in the HAL: gap in the frame numbers, failed capture or lost buffer for our surface</li>
+ * <li>in the BufferQueue: captured fine, but a later frame was latched first (the
+ * SurfaceTexture queue overwrote it because the renderer was behind)</li>
+ * <li>in GL: latched, but not drawn on any output</li>
+ * </ul>
+ */
+public class FrameDropDetector {
+    private static final String TAG = "camapp.drops";
+    // Captured frames waiting to be latched
+    final static int PENDING_FRAMES = 64;
+    // Frames latched before their onCaptureStarted arrived
+    final static int UNMATCHED_LATCHES = 8;
+
+    final Surface mSurface;
+
+    // Started captures, not latched yet. A ring ordered by frame number.
+    final long[] mPendingFrameNumber = new long[PENDING_FRAMES];
+    final long[] mPendingTimestamp = new long[PENDING_FRAMES];
+    final boolean[] mPendingLost = new boolean[PENDING_FRAMES];
+    int mPendingHead = 0;
+    int mPendingSize = 0;
+    // Frames counted as BufferQueue drops, in case the HAL reports them late
+    final long[] mMissingFrameNumber = new long[PENDING_FRAMES];
+    int mMissingHead = 0;
+    // Latched timestamps with no started capture yet, -1 if free. The capture callbacks
+    // run on another thread and can come after the frame itself.
+    final long[] mUnmatchedLatch = new long[UNMATCHED_LATCHES];
+    int mUnmatchedHead = 0;
+    long mLastLatchedTimestamp = -1;
+
+    long mLastFrameNumber = -1;
+    long mStarted = 0;
+    long mLatched = 0;
+    long mHalGaps = 0;
+    long mHalLost = 0;
+    long mFailedError = 0;
+    long mFailedFlushed = 0;
+    long mFailedImageCaptured = 0;
+    long mBufferQueueDrops = 0;
+    long mGlDrops = 0;
+    long mGlSkippedOutputs = 0;
+    long mSequencesCompleted = 0;
+    long mSequencesAborted = 0;
+    final HashMap<Surface, Integer> mBufferLost = new HashMap<>();
+
+    /**
+     * @param surface the camera output the GL side latches from
+     */
+    public FrameDropDetector(Surface surface) {
+        mSurface = surface;
+        for (int i = 0; i < PENDING_FRAMES; i++) {
+            mMissingFrameNumber[i] = -1;
+        }
+        for (int i = 0; i < UNMATCHED_LATCHES; i++) {
+            mUnmatchedLatch[i] = -1;
+        }
+    }
+
+    synchronized void onCaptureStarted(long frameNumber, long timestamp) {
+        mStarted++;
+        if (mLastFrameNumber >= 0 && frameNumber > mLastFrameNumber + 1) {
+            long gap = frameNumber - mLastFrameNumber - 1;
+            Log.w(TAG, "Frame number gap: " + gap + " before frame " + frameNumber);
+            mHalGaps += gap;
+        }
+        if (frameNumber > mLastFrameNumber) {
+            mLastFrameNumber = frameNumber;
+        }
+        if (takeUnmatchedLatch(timestamp)) {
+            // Already latched, anything captured before it was skipped
+            while (mPendingSize > 0 && mPendingTimestamp[mPendingHead] < timestamp) {
+                evictPending();
+            }
+            return;
+        }
+        if (timestamp < mLastLatchedTimestamp) {
+            // A later frame was latched already
+            mBufferQueueDrops++;
+            addMissing(frameNumber);
+            return;
+        }
+        if (mPendingSize == PENDING_FRAMES) {
+            // Never latched
+            evictPending();
+        }
+        int i = (mPendingHead + mPendingSize) % PENDING_FRAMES;
+        mPendingFrameNumber[i] = frameNumber;
+        mPendingTimestamp[i] = timestamp;
+        mPendingLost[i] = false;
+        mPendingSize++;
+    }
+
+    synchronized void onCaptureFailed(CaptureFailure failure) {
+        if (failure.getReason() == CaptureFailure.REASON_FLUSHED) {
+            mFailedFlushed++;
+        } else {
+            mFailedError++;
+        }
+        if (failure.wasImageCaptured()) {
+            mFailedImageCaptured++;
+        }
+        markLost(failure.getFrameNumber());
+    }
+
+    synchronized void onCaptureBufferLost(Surface target, long frameNumber) {
+        Integer count = mBufferLost.get(target);
+        mBufferLost.put(target, (count == null) ? 1 : count + 1);
+        if (target == mSurface) {
+            markLost(frameNumber);
+        }
+    }
+
+    synchronized void onCaptureSequenceCompleted(int sequenceId, long frameNumber) {
+        mSequencesCompleted++;
+    }
+
+    synchronized void onCaptureSequenceAborted(int sequenceId) {
+        mSequencesAborted++;
+    }
+
+    /**
+     * The camera went away: frame numbers restart with the next device, and the pending
+     * captures will never be delivered.
+     */
+    synchronized void onCameraLost() {
+        while (mPendingSize > 0) {
+            mPendingLost[mPendingHead] = true;
+            evictPending();
+        }
+        mLastFrameNumber = -1;
+    }
+
+    // The HAL will not deliver frameNumber
+    private void markLost(long frameNumber) {
+        for (int j = 0; j < mPendingSize; j++) {
+            int i = (mPendingHead + j) % PENDING_FRAMES;
+            if (mPendingFrameNumber[i] == frameNumber) {
+                mPendingLost[i] = true;
+                return;
+            }
+        }
+        for (int i = 0; i < PENDING_FRAMES; i++) {
+            if (mMissingFrameNumber[i] == frameNumber) {
+                // Already counted as a BufferQueue drop
+                mMissingFrameNumber[i] = -1;
+                mBufferQueueDrops--;
+                mHalLost++;
+                return;
+            }
+        }
+    }
+
+    private void evictPending() {
+        int i = mPendingHead;
+        if (mPendingLost[i]) {
+            mHalLost++;
+        } else {
+            mBufferQueueDrops++;
+            addMissing(mPendingFrameNumber[i]);
+        }
+        mPendingHead = (mPendingHead + 1) % PENDING_FRAMES;
+        mPendingSize--;
+    }
+
+    private void addMissing(long frameNumber) {
+        mMissingFrameNumber[mMissingHead] = frameNumber;
+        mMissingHead = (mMissingHead + 1) % PENDING_FRAMES;
+    }
+
+    private boolean takeUnmatchedLatch(long timestamp) {
+        for (int i = 0; i < UNMATCHED_LATCHES; i++) {
+            if (mUnmatchedLatch[i] == timestamp) {
+                mUnmatchedLatch[i] = -1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the renderer after updateTexImage, with the latched buffer timestamp (the
+     * sensor timestamp of the capture).
+     */
+    public synchronized void onFrameLatched(long timestamp) {
+        // Anything captured before this frame was skipped
+        while (mPendingSize > 0 && mPendingTimestamp[mPendingHead] < timestamp) {
+            evictPending();
+        }
+        if (mPendingSize > 0 && mPendingTimestamp[mPendingHead] == timestamp) {
+            mPendingHead = (mPendingHead + 1) % PENDING_FRAMES;
+            mPendingSize--;
+        } else {
+            // Matched when onCaptureStarted comes, the oldest one is overwritten
+            mUnmatchedLatch[mUnmatchedHead] = timestamp;
+            mUnmatchedHead = (mUnmatchedHead + 1) % UNMATCHED_LATCHES;
+        }
+        if (timestamp > mLastLatchedTimestamp) {
+            mLastLatchedTimestamp = timestamp;
+        }
+        mLatched++;
+    }
+
+    /**
+     * Called by the renderer after drawing the latched frame.
+     *
+     * @param drawn  outputs the frame was drawn on
+     * @param total  outputs attached to the renderer
+     */
+    public synchronized void onFrameDrawn(int drawn, int total) {
+        if (drawn == 0 && total > 0) {
+            mGlDrops++;
+        }
+        mGlSkippedOutputs += total - drawn;
+    }
+
+    public synchronized long getHalDrops() {
+        return mHalGaps + mHalLost;
+    }
+
+    public synchronized long getBufferQueueDrops() {
+        return mBufferQueueDrops;
+    }
+
+    public synchronized long getGlDrops() {
+        return mGlDrops;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("frame_drops {\n");
+        str.append("  started: " + mStarted + "\n");
+        str.append("  latched: " + mLatched + "\n");
+        str.append("  hal_frame_number_gaps: " + mHalGaps + "\n");
+        str.append("  hal_lost: " + mHalLost + "\n");
+        str.append("  failed_error: " + mFailedError + "\n");
+        str.append("  failed_flushed: " + mFailedFlushed + "\n");
+        str.append("  failed_image_captured: " + mFailedImageCaptured + "\n");
+        str.append("  buffer_queue_drops: " + mBufferQueueDrops + "\n");
+        str.append("  gl_drops: " + mGlDrops + "\n");
+        str.append("  gl_skipped_outputs: " + mGlSkippedOutputs + "\n");
+        str.append("  sequences_completed: " + mSequencesCompleted + "\n");
+        str.append("  sequences_aborted: " + mSequencesAborted + "\n");
+        for (Map.Entry<Surface, Integer> entry : mBufferLost.entrySet()) {
+            str.append("  buffer_lost {\n");
+            str.append("    surface: " + entry.getKey() + (entry.getKey() == mSurface ? " (tracked)" : "") + "\n");
+            str.append("    count: " + entry.getValue() + "\n");
+            str.append("  }\n");
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package com.facebook.camapp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multiple producer, single consumer ring of frame events, each one a timestamp. Neither side
+ * takes a lock: a producer claims a slot by moving the tail with a CAS and publishes it through
+ * the slot sequence, the consumer frees the slots it took the same way.
+ * <p>
+ * Slot i holds sequence n when it is free for the producer of position n, and n + 1 once that
+ * position is published. Producers can then race on the tail (e.g. onFrameAvailable and a
+ * decoder thread) without the consumer ever reading a slot that is claimed but not written.
+ * <p>
+ * A consumer with nothing to do parks, after flagging that it waits. A producer only unparks
+ * it when that flag is set, so a busy consumer costs the producer a CAS, two volatile accesses
+ * and no wakeup. There must be one consumer thread.
+ */
+public class FrameEventRing {
+    final long[] mTimestamps;
+    final AtomicLongArray mSequence;
+    final int mMask;
+    // Written by the consumer only
+    long mHead = 0;
+    // Next position to claim, shared by the producers
+    final AtomicLong mTail = new AtomicLong(0);
+    volatile boolean mWaiting = false;
+    volatile boolean mWoken = false;
+    volatile Thread mConsumer = null;
+    // Producer side, events lost because the consumer was a full ring behind
+    final AtomicLong mOverflows = new AtomicLong(0);
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public FrameEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mTimestamps = new long[size];
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * Producer side, from any thread. Returns false, and drops the event, if the ring is full.
+     */
+    public boolean offer(long timestampNs) {
+        boolean added = false;
+        while (true) {
+            long tail = mTail.get();
+            int slot = (int) tail & mMask;
+            long diff = mSequence.get(slot) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mTimestamps[slot] = timestampNs;
+                    // Publishes the slot, and orders it before the mWaiting read
+                    mSequence.set(slot, tail + 1);
+                    added = true;
+                    break;
+                }
+            } else if (diff < 0) {
+                // Not freed by the consumer yet
+                mOverflows.incrementAndGet();
+                break;
+            }
+            // Claimed by another producer meanwhile, try the next position
+        }
+        if (mWaiting) {
+            Thread consumer = mConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return added;
+    }
+
+    // Consumer side, the oldest event is published
+    private boolean hasEvents() {
+        return mSequence.get((int) mHead & mMask) == mHead + 1;
+    }
+
+    /**
+     * Consumer side. Waits until there is at least one event, wakeup() is called or the
+     * timeout expires. Returns true if there are events.
+     */
+    public boolean await(long timeoutNs) {
+        if (hasEvents()) {
+            return true;
+        }
+        mConsumer = Thread.currentThread();
+        long deadlineNs = System.nanoTime() + timeoutNs;
+        mWaiting = true;
+        // Checked again after flagging, an offer() in between would be missed otherwise
+        long waitNs;
+        while (!hasEvents() && !mWoken && (waitNs = deadlineNs - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, waitNs);
+        }
+        mWaiting = false;
+        mWoken = false;
+        return hasEvents();
+    }
+
+    /**
+     * Makes a waiting consumer return, e.g. to quit.
+     */
+    public void wakeup() {
+        mWoken = true;
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer side. Takes the pending events, up to out.length, in one pass. Stops at the
+     * first slot claimed by a producer but not published yet.
+     *
+     * @return the number of events copied to out
+     */
+    public int drain(long[] out) {
+        int count = 0;
+        while (count < out.length && hasEvents()) {
+            int slot = (int) mHead & mMask;
+            out[count++] = mTimestamps[slot];
+            // Frees the slot for the producer one lap later
+            mSequence.set(slot, mHead + mTimestamps.length);
+            mHead++;
+        }
+        return count;
+    }
+
+    public long getOverflows() {
+        return mOverflows.get();
+    }
+}
@@ -1,5 +1,7 @@
 package com.facebook.camapp.utils;
 import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
 import android.view.Surface;
 
 import com.facebook.camapp.utils.grafika.*;
@@ -9,6 +11,98 @@ import android.view.Surface;
 public class FrameswapControl extends WindowSurface {
     private boolean mDropNext = false;
 
+    /**
+     * Which input frames the renderer draws on this output.
+     */
+    public enum RatePolicy {
+        ALL,
+        EVERY_NTH,     // value: N
+        TARGET_FPS,    // value: period in ns, frames are picked on a grid of sensor timestamps
+        MIN_INTERVAL   // value: ns, least time between the timestamps of two drawn frames
+    }
+
+    private static class Rate {
+        final RatePolicy mPolicy;
+        final long mValue;
+
+        Rate(RatePolicy policy, long value) {
+            mPolicy = policy;
+            mValue = value;
+        }
+    }
+
+    /**
+     * Where and how the input lands on this output. Never changed once published, the
+     * setters replace it as a whole.
+     */
+    private static class Transform {
+        // Clockwise, multiple of 90
+        int mRotation = 0;
+        boolean mMirror = false;
+        // Input fractions, top-left origin: left, top, right, bottom. Null for all of it.
+        float[] mCrop = null;
+        // Pixels, bottom-left origin: x, y, width, height. Null for the whole surface.
+        int[] mViewport = null;
+        // Keep the aspect ratio of an input of this size, centered, with black bars
+        int mFitWidth = 0;
+        int mFitHeight = 0;
+        final float[] mMvpMatrix = new float[16];
+        // Applied to the texture coordinates before the SurfaceTexture matrix
+        float[] mCropMatrix = null;
+
+        Transform copy() {
+            Transform transform = new Transform();
+            transform.mRotation = mRotation;
+            transform.mMirror = mMirror;
+            transform.mCrop = mCrop;
+            transform.mViewport = mViewport;
+            transform.mFitWidth = mFitWidth;
+            transform.mFitHeight = mFitHeight;
+            return transform;
+        }
+
+        boolean isIdentity() {
+            return mRotation == 0 && !mMirror && mCrop == null && mViewport == null && mFitWidth == 0;
+        }
+
+        // Fills in the matrices from the settings
+        Transform build() {
+            Matrix.setIdentityM(mMvpMatrix, 0);
+            if (mMirror) {
+                // Applied to the rotated rect
+                Matrix.scaleM(mMvpMatrix, 0, -1, 1, 1);
+            }
+            // The rect is in clip space, y up: a clockwise turn is a negative angle
+            Matrix.rotateM(mMvpMatrix, 0, -mRotation, 0, 0, 1);
+            if (mCrop != null) {
+                // Texture coordinates have a bottom-left origin
+                mCropMatrix = new float[16];
+                Matrix.setIdentityM(mCropMatrix, 0);
+                Matrix.translateM(mCropMatrix, 0, mCrop[0], 1 - mCrop[3], 0);
+                Matrix.scaleM(mCropMatrix, 0, mCrop[2] - mCrop[0], mCrop[3] - mCrop[1], 1);
+            }
+            return this;
+        }
+    }
+
+    private volatile Transform mTransform = new Transform().build();
+    // Renderer thread only
+    private final float[] mTexMatrix = new float[16];
+
+    // Set from any thread, picked up by the renderer on the next frame
+    private volatile Rate mRate = new Rate(RatePolicy.ALL, 0);
+    // Renderer thread only
+    private Rate mAppliedRate = null;
+    private long mFrameCount = 0;
+    private long mLastTimestampNs = -1;
+    private long mInputIntervalNs = 0;
+    private long mNextDueNs = -1;
+    private long mLastKeptNs = -1;
+    private volatile long mKept = 0;
+    private volatile long mDecimated = 0;
+    // Set by the drawing thread when GPU timing is on
+    private volatile GpuTimer mGpuTimer = null;
+
     public FrameswapControl(EglCore eglCore, Surface surface, boolean releaseSurface) {
         super(eglCore, surface, releaseSurface);
     }
@@ -21,8 +115,311 @@ public class FrameswapControl extends WindowSurface {
         return !mDropNext;
     }
 
+    /**
+     * Called by the renderer once per input frame, before drawing anything on this output.
+     * Returns false if the frame is to be left out, by dropNext() or by the rate policy.
+     */
+    public boolean keepFrame(long timestampNs) {
+        if (mDropNext) {
+            return false;
+        }
+        Rate rate = mRate;
+        if (rate != mAppliedRate) {
+            mAppliedRate = rate;
+            mFrameCount = 0;
+            mNextDueNs = -1;
+            mLastKeptNs = -1;
+        }
+        if (mLastTimestampNs >= 0 && timestampNs > mLastTimestampNs) {
+            mInputIntervalNs = timestampNs - mLastTimestampNs;
+        }
+        mLastTimestampNs = timestampNs;
+        boolean keep;
+        switch (rate.mPolicy) {
+            case EVERY_NTH:
+                keep = (mFrameCount % rate.mValue) == 0;
+                break;
+            case TARGET_FPS:
+                keep = isDue(timestampNs, rate.mValue);
+                break;
+            case MIN_INTERVAL:
+                keep = (mLastKeptNs < 0) || (timestampNs - mLastKeptNs >= rate.mValue);
+                break;
+            default:
+                keep = true;
+        }
+        mFrameCount++;
+        if (keep) {
+            mLastKeptNs = timestampNs;
+            mKept++;
+        } else {
+            mDecimated++;
+        }
+        return keep;
+    }
+
+    /**
+     * Same answer as keepFrame(), without moving the policy state. For an output that cannot
+     * take the frame anyway, so that its skipped frames only count the ones it wanted.
+     */
+    public boolean wouldKeepFrame(long timestampNs) {
+        if (mDropNext) {
+            return false;
+        }
+        Rate rate = mRate;
+        if (rate != mAppliedRate) {
+            // Starts over with the first frame
+            return true;
+        }
+        switch (rate.mPolicy) {
+            case EVERY_NTH:
+                return (mFrameCount % rate.mValue) == 0;
+            case TARGET_FPS:
+                return mNextDueNs < 0 || timestampNs + mInputIntervalNs / 2 >= mNextDueNs;
+            case MIN_INTERVAL:
+                return (mLastKeptNs < 0) || (timestampNs - mLastKeptNs >= rate.mValue);
+            default:
+                return true;
+        }
+    }
+
+    // Frames are due on a grid of periodNs, so the output rate does not drift. Half an input
+    // frame of slack keeps timestamp jitter from pushing a frame to the next slot.
+    private boolean isDue(long timestampNs, long periodNs) {
+        if (mNextDueNs >= 0 && timestampNs + mInputIntervalNs / 2 < mNextDueNs) {
+            return false;
+        }
+        if (mNextDueNs < 0 || timestampNs - mNextDueNs >= periodNs) {
+            // First frame, or more than a period behind: start a new grid
+            mNextDueNs = timestampNs + periodNs;
+        } else {
+            mNextDueNs += periodNs;
+        }
+        return true;
+    }
+
     public void dropNext(boolean drop) {
         mDropNext = drop;
     }
-}
 
+    /**
+     * Draws every input frame, the default.
+     */
+    public void setAllFrames() {
+        mRate = new Rate(RatePolicy.ALL, 0);
+    }
+
+    /**
+     * Draws one input frame out of n.
+     */
+    public void setEveryNth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Bad frame step: " + n);
+        }
+        mRate = new Rate(RatePolicy.EVERY_NTH, n);
+    }
+
+    /**
+     * Draws the input frames closest to the given rate, e.g. 15 out of a 60 fps input. The
+     * output never goes above the input rate.
+     */
+    public void setTargetFps(float fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("Bad target fps: " + fps);
+        }
+        mRate = new Rate(RatePolicy.TARGET_FPS, (long) (1000000000.0 / fps));
+    }
+
+    /**
+     * Leaves out the input frames closer than intervalUs to the last drawn one.
+     */
+    public void setMinIntervalUs(long intervalUs) {
+        if (intervalUs < 0) {
+            throw new IllegalArgumentException("Bad interval: " + intervalUs);
+        }
+        mRate = new Rate(RatePolicy.MIN_INTERVAL, intervalUs * 1000);
+    }
+
+    /**
+     * Sets the rate policy from a description like "all", "nth:4", "fps:15" or
+     * "interval_usec:66666".
+     */
+    public void setRate(String spec) {
+        String[] parts = spec.split(":");
+        String policy = parts[0].trim();
+        if (policy.equals("all")) {
+            setAllFrames();
+            return;
+        }
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Bad output rate: " + spec);
+        }
+        String value = parts[1].trim();
+        switch (policy) {
+            case "nth":
+                setEveryNth(Integer.parseInt(value));
+                break;
+            case "fps":
+                setTargetFps(Float.parseFloat(value));
+                break;
+            case "interval_usec":
+                setMinIntervalUs(Long.parseLong(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown output rate policy: " + policy);
+        }
+    }
+
+    public RatePolicy getRatePolicy() {
+        return mRate.mPolicy;
+    }
+
+    /**
+     * Input frames drawn on this output and left out by the rate policy.
+     */
+    public long getKeptFrames() {
+        return mKept;
+    }
+
+    public long getDecimatedFrames() {
+        return mDecimated;
+    }
+
+    /**
+     * Rotates the input clockwise on this output, in steps of 90 degrees.
+     */
+    public synchronized void setRotation(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Bad rotation: " + degrees);
+        }
+        Transform transform = mTransform.copy();
+        transform.mRotation = ((degrees % 360) + 360) % 360;
+        mTransform = transform.build();
+    }
+
+    /**
+     * Flips the input horizontally, after the rotation.
+     */
+    public synchronized void setMirror(boolean mirror) {
+        Transform transform = mTransform.copy();
+        transform.mMirror = mirror;
+        mTransform = transform.build();
+    }
+
+    /**
+     * Draws only this part of the input, given as fractions of its width and height with a
+     * top-left origin, e.g. (0.25, 0.25, 0.75, 0.75) for a 2x center zoom.
+     */
+    public synchronized void setCrop(float left, float top, float right, float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Bad crop: " + left + "," + top + "," + right + "," + bottom);
+        }
+        Transform transform = mTransform.copy();
+        transform.mCrop = new float[]{left, top, right, bottom};
+        mTransform = transform.build();
+    }
+
+    /**
+     * Draws into this rectangle of the surface (pixels, bottom-left origin) instead of all of
+     * it. The rest of the surface is cleared.
+     */
+    public synchronized void setViewport(int x, int y, int width, int height) {
+        Transform transform = mTransform.copy();
+        transform.mViewport = new int[]{x, y, width, height};
+        transform.mFitWidth = 0;
+        transform.mFitHeight = 0;
+        mTransform = transform.build();
+    }
+
+    /**
+     * Letterboxes an input of this size (before crop and rotation): the largest centered
+     * viewport with its aspect ratio, black bars around it.
+     */
+    public synchronized void setFitCenter(int inputWidth, int inputHeight) {
+        Transform transform = mTransform.copy();
+        transform.mViewport = null;
+        transform.mFitWidth = inputWidth;
+        transform.mFitHeight = inputHeight;
+        mTransform = transform.build();
+    }
+
+    /**
+     * Back to the whole input on the whole surface.
+     */
+    public synchronized void clearTransform() {
+        mTransform = new Transform().build();
+    }
+
+    /**
+     * Drawing thread, with this surface current: sets the viewport and returns the MVP
+     * matrix to draw with.
+     */
+    public float[] prepareDraw() {
+        Transform transform = mTransform;
+        int surfaceWidth = getWidth();
+        int surfaceHeight = getHeight();
+        if (transform.isIdentity()) {
+            GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+            return transform.mMvpMatrix;
+        }
+        int[] viewport = transform.mViewport;
+        int x = 0;
+        int y = 0;
+        int width = surfaceWidth;
+        int height = surfaceHeight;
+        if (viewport != null) {
+            x = viewport[0];
+            y = viewport[1];
+            width = viewport[2];
+            height = viewport[3];
+        } else if (transform.mFitWidth > 0 && transform.mFitHeight > 0) {
+            float inputWidth = transform.mFitWidth;
+            float inputHeight = transform.mFitHeight;
+            if (transform.mCrop != null) {
+                inputWidth *= transform.mCrop[2] - transform.mCrop[0];
+                inputHeight *= transform.mCrop[3] - transform.mCrop[1];
+            }
+            if (transform.mRotation % 180 != 0) {
+                float swap = inputWidth;
+                inputWidth = inputHeight;
+                inputHeight = swap;
+            }
+            float scale = Math.min(surfaceWidth / inputWidth, surfaceHeight / inputHeight);
+            width = Math.round(inputWidth * scale);
+            height = Math.round(inputHeight * scale);
+            x = (surfaceWidth - width) / 2;
+            y = (surfaceHeight - height) / 2;
+        }
+        if (width < surfaceWidth || height < surfaceHeight) {
+            // Bars, glClear ignores the viewport
+            GLES20.glClearColor(0, 0, 0, 1);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        GLES20.glViewport(x, y, width, height);
+        return transform.mMvpMatrix;
+    }
+
+    /**
+     * Drawing thread: the SurfaceTexture matrix with this output's crop applied. Only valid
+     * until the next call.
+     */
+    public float[] getTexMatrix(float[] texMatrix) {
+        float[] crop = mTransform.mCropMatrix;
+        if (crop == null) {
+            return texMatrix;
+        }
+        Matrix.multiplyMM(mTexMatrix, 0, texMatrix, 0, crop, 0);
+        return mTexMatrix;
+    }
+
+    /**
+     * GPU time of the draws on this output, null unless the multiplier times them.
+     */
+    public GpuTimer getGpuTimer() {
+        return mGpuTimer;
+    }
+
+    void setGpuTimer(GpuTimer timer) {
+        mGpuTimer = timer;
+    }
+}
@@ -0,0 +1,131 @@
+package com.facebook.camapp.utils;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * GPU time of the draw calls of one output, without stalling the pipeline.
+ * <p>
+ * Every draw is wrapped in a GL_TIME_ELAPSED_EXT query (GL_EXT_disjoint_timer_query), which
+ * measures the GPU execution time itself. Without the extension there is nothing to measure
+ * with: fences only tell when the work was seen done, i.e. about one frame later.
+ * <p>
+ * The measurements go through a ring of SLOTS queries, collected once the GPU is done with
+ * them. If the GPU is so far behind that the ring is full, the draw is not measured instead
+ * of waiting. All calls on the thread of the output's GL context.
+ */
+public class GpuTimer {
+    // GL_EXT_disjoint_timer_query, not in GLES30
+    public final static String EXTENSION = "GL_EXT_disjoint_timer_query";
+    final static int GL_TIME_ELAPSED_EXT = 0x88BF;
+    final static int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    final static int SLOTS = 4;
+
+    final LatencyHistogram mGpuTime;
+    final int[] mQueries = new int[SLOTS];
+    final boolean[] mPending = new boolean[SLOTS];
+    final int[] mValue = new int[1];
+    int mNext = 0;
+    boolean mMeasuring = false;
+    volatile long mSkipped = 0;
+    volatile long mDisjoint = 0;
+
+    /**
+     * Needs a current GLES 3 context with EXTENSION.
+     */
+    public GpuTimer(String name) {
+        mGpuTime = new LatencyHistogram(name);
+        GLES30.glGenQueries(SLOTS, mQueries, 0);
+    }
+
+    /**
+     * Reads and clears the disjoint flag of the current context: set if something (e.g. a GPU
+     * frequency change) made the timings meaningless. The flag is per context, so read it
+     * once per frame and pass it to every timer of the context, see begin().
+     */
+    public static boolean readDisjoint() {
+        int[] value = new int[1];
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, value, 0);
+        return value[0] != 0;
+    }
+
+    /**
+     * Before the draw calls of the output.
+     *
+     * @param disjoint readDisjoint() of this frame
+     */
+    public void begin(boolean disjoint) {
+        poll(disjoint);
+        if (mPending[mNext]) {
+            // Not waiting for the GPU
+            mSkipped++;
+            return;
+        }
+        mMeasuring = true;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mNext]);
+    }
+
+    /**
+     * After the draw calls, before swapBuffers().
+     */
+    public void end() {
+        if (!mMeasuring) {
+            return;
+        }
+        mMeasuring = false;
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mPending[mNext] = true;
+        mNext = (mNext + 1) % SLOTS;
+    }
+
+    /**
+     * Records the measurements the GPU is done with, oldest first. Never waits. If disjoint
+     * is set they are all dropped, the flag does not tell which ones were hit.
+     */
+    public void poll(boolean disjoint) {
+        for (int i = 0; i < SLOTS; i++) {
+            int slot = (mNext + i) % SLOTS;
+            if (!mPending[slot]) {
+                continue;
+            }
+            GLES30.glGetQueryObjectuiv(mQueries[slot], GLES30.GL_QUERY_RESULT_AVAILABLE, mValue, 0);
+            if (mValue[0] == 0) {
+                // The later ones are not done either
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(mQueries[slot], GLES30.GL_QUERY_RESULT, mValue, 0);
+            if (disjoint) {
+                mDisjoint++;
+            } else {
+                mGpuTime.recordNs(mValue[0] & 0xffffffffL);
+            }
+            mPending[slot] = false;
+        }
+    }
+
+    /**
+     * Deletes the queries, with the context current.
+     */
+    public void release() {
+        GLES30.glDeleteQueries(SLOTS, mQueries, 0);
+        for (int i = 0; i < SLOTS; i++) {
+            mPending[i] = false;
+        }
+    }
+
+    public LatencyHistogram getGpuTime() {
+        return mGpuTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("gpu_timer {\n");
+        str.append("  name: " + mGpuTime.getName() + "\n");
+        str.append("  skipped: " + mSkipped + "\n");
+        str.append("  disjoint: " + mDisjoint + "\n");
+        str.append("}\n");
+        str.append(mGpuTime.toString());
+        return str.toString();
+    }
+}
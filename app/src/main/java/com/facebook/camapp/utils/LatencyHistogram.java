@@ -0,0 +1,100 @@
+package com.facebook.camapp.utils;
+
+/**
+ * Histogram of latencies with power of two microsecond buckets. Recording does not allocate,
+ * so it can sit on a per-frame path.
+ */
+public class LatencyHistogram {
+    // Bucket 0 holds [0, 1) usec, bucket i holds [2^(i-1), 2^i) usec
+    final static int BUCKETS = 32;
+
+    final String mName;
+    final long[] mBuckets = new long[BUCKETS];
+    long mCount = 0;
+    long mSumUs = 0;
+    long mMaxUs = 0;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized void recordNs(long latencyNs) {
+        long us = Math.max(0, latencyNs / 1000);
+        int bucket = (us == 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+        mBuckets[bucket]++;
+        mCount++;
+        mSumUs += us;
+        if (us > mMaxUs) {
+            mMaxUs = us;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMeanUs() {
+        return (mCount > 0) ? (double) mSumUs / mCount : 0;
+    }
+
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    /**
+     * Returns the latency under which a fraction (0 to 1) of the samples are, interpolated
+     * inside its bucket.
+     */
+    public synchronized double getPercentileUs(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        double target = fraction * mCount;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mBuckets[i] == 0) {
+                continue;
+            }
+            if (seen + mBuckets[i] >= target) {
+                double lower = (i == 0) ? 0 : (1L << (i - 1));
+                double upper = Math.min(1L << i, mMaxUs + 1);
+                return lower + (upper - lower) * (target - seen) / mBuckets[i];
+            }
+            seen += mBuckets[i];
+        }
+        return mMaxUs;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSumUs = 0;
+        mMaxUs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("latency {\n");
+        str.append("  name: " + mName + "\n");
+        str.append("  count: " + mCount + "\n");
+        str.append(String.format("  mean_us: %.1f\n", getMeanUs()));
+        str.append(String.format("  p50_us: %.1f\n", getPercentileUs(0.5)));
+        str.append(String.format("  p90_us: %.1f\n", getPercentileUs(0.9)));
+        str.append(String.format("  p99_us: %.1f\n", getPercentileUs(0.99)));
+        str.append("  max_us: " + mMaxUs + "\n");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mBuckets[i] > 0) {
+                str.append("  bucket { below_us: " + (1L << i) + " count: " + mBuckets[i] + " }\n");
+            }
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+}
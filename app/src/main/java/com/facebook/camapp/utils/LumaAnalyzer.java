@@ -0,0 +1,101 @@
+package com.facebook.camapp.utils;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Luma statistics of every analyzed frame: mean, min, max and a 16 bin histogram of the Y
+ * plane. Reads every step-th pixel of every step-th row, straight from the plane buffer.
+ */
+public class LumaAnalyzer implements AnalysisStage.Analyzer {
+    final static int BINS = 16;
+
+    final int mStep;
+    final int[] mHistogram = new int[BINS];
+    // Histogram being filled, only touched by the analyzer thread
+    final int[] mWork = new int[BINS];
+    // Last frame
+    volatile double mMean = 0;
+    volatile int mMin = 0;
+    volatile int mMax = 0;
+    volatile long mTimestampNs = -1;
+
+    /**
+     * @param step subsampling in both directions, 1 reads every pixel
+     */
+    public LumaAnalyzer(int step) {
+        mStep = Math.max(1, step);
+    }
+
+    @Override
+    public void analyze(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long sum = 0;
+        int count = 0;
+        int min = 255;
+        int max = 0;
+        int[] histogram = mWork;
+        for (int i = 0; i < BINS; i++) {
+            histogram[i] = 0;
+        }
+        for (int y = 0; y < height; y += mStep) {
+            int rowOffset = y * rowStride;
+            for (int x = 0; x < width; x += mStep) {
+                // Absolute get, the buffer position is left alone
+                int luma = buffer.get(rowOffset + x * pixelStride) & 0xff;
+                sum += luma;
+                count++;
+                if (luma < min) {
+                    min = luma;
+                }
+                if (luma > max) {
+                    max = luma;
+                }
+                histogram[luma >> 4]++;
+            }
+        }
+        synchronized (mHistogram) {
+            System.arraycopy(histogram, 0, mHistogram, 0, BINS);
+        }
+        mMean = (count > 0) ? (double) sum / count : 0;
+        mMin = min;
+        mMax = max;
+        mTimestampNs = image.getTimestamp();
+    }
+
+    public double getMean() {
+        return mMean;
+    }
+
+    public int getMin() {
+        return mMin;
+    }
+
+    public int getMax() {
+        return mMax;
+    }
+
+    public int[] getHistogram() {
+        synchronized (mHistogram) {
+            return mHistogram.clone();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format("luma { timestamp_ns: %d mean: %.1f min: %d max: %d histogram:",
+                mTimestampNs, mMean, mMin, mMax));
+        for (int bin : getHistogram()) {
+            str.append(" " + bin);
+        }
+        str.append(" }");
+        return str.toString();
+    }
+}
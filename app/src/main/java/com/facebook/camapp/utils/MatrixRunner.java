@@ -0,0 +1,322 @@
+package com.facebook.camapp.utils;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one camera through every size x format x fps point of its StreamConfigurationMap.
+ * <p>
+ * Every point opens the camera with a single ImageReader output, runs for a fixed time and
+ * records startup time (open to first frame), measured fps and drops. The results go to one
+ * CSV file.
+ */
+public class MatrixRunner {
+    private static final String TAG = "camapp.matrix";
+    final static int MAX_IMAGES = 4;
+    final static long FIRST_FRAME_TIMEOUT_MS = 5000;
+    // Let the camera close before opening it again
+    final static long CLOSE_WAIT_MS = 500;
+
+    public interface Listener {
+        void onPoint(int index, int count, Point point);
+    }
+
+    /**
+     * One configuration, and what was measured on it.
+     */
+    public static class Point {
+        public final int mFormat;
+        public final Size mSize;
+        public final float mFps;
+        public String mStatus = "not_run";
+        public double mFirstFrameMs = -1;
+        public long mFrames = 0;
+        public double mMeasuredFps = 0;
+        public long mHalDrops = 0;
+        public long mBufferQueueDrops = 0;
+
+        Point(int format, Size size, float fps) {
+            mFormat = format;
+            mSize = size;
+            mFps = fps;
+        }
+
+        public static String getHeader() {
+            return "format,width,height,target_fps,status,first_frame_ms,frames,measured_fps,hal_drops,bq_drops";
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s,%d,%d,%.1f,%s,%.2f,%d,%.2f,%d,%d",
+                    formatToString(mFormat), mSize.getWidth(), mSize.getHeight(), mFps, mStatus,
+                    mFirstFrameMs, mFrames, mMeasuredFps, mHalDrops, mBufferQueueDrops);
+        }
+    }
+
+    // Frames seen by the reader of the running point
+    static class FrameCounter {
+        long mFrames = 0;
+        long mFirstTimestampNs = -1;
+        long mLastTimestampNs = -1;
+    }
+
+    final Context mContext;
+    final String mCameraId;
+    int[] mFormats = new int[]{ImageFormat.YUV_420_888, ImageFormat.PRIVATE};
+    float[] mFps = null;
+    Size mMaxSize = null;
+    long mDurationMs = 5000;
+    final Vector<Point> mPoints = new Vector<>();
+
+    public MatrixRunner(Context context, String cameraId) {
+        mContext = context;
+        mCameraId = cameraId;
+    }
+
+    public void setFormats(int[] formats) {
+        mFormats = formats;
+    }
+
+    /**
+     * Frame rates to run, by default the upper ends of the AE target fps ranges.
+     */
+    public void setFps(float[] fps) {
+        mFps = fps;
+    }
+
+    public void setMaxSize(Size size) {
+        mMaxSize = size;
+    }
+
+    public void setDurationMs(long durationMs) {
+        mDurationMs = durationMs;
+    }
+
+    public static int parseFormat(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "yuv":
+                return ImageFormat.YUV_420_888;
+            case "private":
+                return ImageFormat.PRIVATE;
+            case "jpeg":
+                return ImageFormat.JPEG;
+            case "raw":
+                return ImageFormat.RAW_SENSOR;
+            case "p010":
+                return ImageFormat.YCBCR_P010;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + name);
+        }
+    }
+
+    public static String formatToString(int format) {
+        switch (format) {
+            case ImageFormat.YUV_420_888:
+                return "yuv";
+            case ImageFormat.PRIVATE:
+                return "private";
+            case ImageFormat.JPEG:
+                return "jpeg";
+            case ImageFormat.RAW_SENSOR:
+                return "raw";
+            case ImageFormat.YCBCR_P010:
+                return "p010";
+            default:
+                return String.valueOf(format);
+        }
+    }
+
+    /**
+     * Lists the points to run. Points the configuration map says cannot reach their fps are
+     * kept, marked unsupported.
+     */
+    public Vector<Point> enumerate() {
+        mPoints.clear();
+        CameraCharacteristicsCache.Entry characteristics = CameraCharacteristicsCache.get(mContext, mCameraId);
+        if (characteristics == null) {
+            return mPoints;
+        }
+        StreamPlanner planner = new StreamPlanner(characteristics);
+        float[] fpsList = mFps;
+        if (fpsList == null) {
+            TreeSet<Integer> uppers = new TreeSet<>();
+            Range<Integer>[] ranges = characteristics.mFpsRanges;
+            if (ranges != null) {
+                for (Range<Integer> range : ranges) {
+                    uppers.add(range.getUpper());
+                }
+            }
+            fpsList = new float[uppers.size()];
+            int i = 0;
+            for (Integer upper : uppers) {
+                fpsList[i++] = upper;
+            }
+        }
+        for (int format : mFormats) {
+            Size[] sizes = planner.getOutputSizes(format);
+            if (sizes == null) {
+                Log.w(TAG, "No sizes for format " + formatToString(format));
+                continue;
+            }
+            for (Size size : sizes) {
+                if (mMaxSize != null &&
+                        (size.getWidth() > mMaxSize.getWidth() || size.getHeight() > mMaxSize.getHeight())) {
+                    continue;
+                }
+                float maxFps = planner.getMaxFps(format, size);
+                for (float fps : fpsList) {
+                    Point point = new Point(format, size, fps);
+                    if (fps > maxFps + 0.5f) {
+                        point.mStatus = "unsupported_fps";
+                    } else if (!isPlanned(planner, point)) {
+                        // Would only end in onConfigureFailed
+                        point.mStatus = "unsupported_combination";
+                    }
+                    mPoints.add(point);
+                }
+            }
+        }
+        Log.d(TAG, "Matrix of " + mPoints.size() + " points for camera " + mCameraId);
+        return mPoints;
+    }
+
+    // The planner picks the point itself: the largest size up to it that reaches its fps
+    private static boolean isPlanned(StreamPlanner planner, Point point) {
+        StreamPlanner.Output output = new StreamPlanner.Output(new int[]{point.mFormat}, point.mSize, point.mFps);
+        if (!planner.plan(Collections.singletonList(output))) {
+            return false;
+        }
+        return output.mFormat == point.mFormat && point.mSize.equals(output.mSize);
+    }
+
+    /**
+     * Runs every point, blocking. Call it from a worker thread.
+     */
+    public void run(Listener listener) {
+        if (mPoints.isEmpty()) {
+            enumerate();
+        }
+        HandlerThread readerThread = new HandlerThread("matrix.reader");
+        readerThread.start();
+        Handler handler = new Handler(readerThread.getLooper());
+        for (int i = 0; i < mPoints.size(); i++) {
+            Point point = mPoints.get(i);
+            if (point.mStatus.equals("not_run")) {
+                runPoint(point, handler);
+            }
+            Log.d(TAG, point.toString());
+            if (listener != null) {
+                listener.onPoint(i, mPoints.size(), point);
+            }
+        }
+        readerThread.quitSafely();
+    }
+
+    private void runPoint(final Point point, Handler handler) {
+        final ImageReader reader = ImageReader.newInstance(point.mSize.getWidth(), point.mSize.getHeight(),
+                point.mFormat, MAX_IMAGES);
+        final FrameDropDetector detector = new FrameDropDetector(reader.getSurface());
+        final StartupTimeline timeline = new StartupTimeline("Matrix." + mCameraId);
+        final FrameCounter counter = new FrameCounter();
+        reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader imageReader) {
+                Image image = imageReader.acquireLatestImage();
+                if (image == null) {
+                    return;
+                }
+                long timestamp = image.getTimestamp();
+                image.close();
+                timeline.mark(StartupTimeline.Stage.FIRST_FRAME);
+                // Images skipped by acquireLatestImage show up as BufferQueue drops
+                detector.onFrameLatched(timestamp);
+                detector.onFrameDrawn(1, 1);
+                synchronized (counter) {
+                    if (counter.mFirstTimestampNs < 0) {
+                        counter.mFirstTimestampNs = timestamp;
+                    }
+                    counter.mLastTimestampNs = timestamp;
+                    counter.mFrames++;
+                }
+            }
+        }, handler);
+
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        timeline.onStage(StartupTimeline.Stage.FIRST_FRAME, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                firstFrame.countDown();
+            }
+        });
+
+        CameraSource.Client client = CameraSource.openClient(mContext, mCameraId);
+        client.getCamera().setFps(point.mFps);
+        client.addDropDetector(detector);
+        client.registerSurface(reader.getSurface(), point.mSize.getWidth(), point.mSize.getHeight());
+        client.addStartupTimeline(timeline);
+        client.start();
+        try {
+            if (!firstFrame.await(FIRST_FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                point.mStatus = "no_frames";
+            } else {
+                Thread.sleep(mDurationMs);
+                point.mStatus = "ok";
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        client.close();
+
+        point.mFirstFrameMs = timeline.getElapsedMs(StartupTimeline.Stage.FIRST_FRAME);
+        synchronized (counter) {
+            point.mFrames = counter.mFrames;
+            if (counter.mFrames > 1) {
+                point.mMeasuredFps = (counter.mFrames - 1) * 1000000000.0 /
+                        (counter.mLastTimestampNs - counter.mFirstTimestampNs);
+            }
+        }
+        point.mHalDrops = detector.getHalDrops();
+        point.mBufferQueueDrops = detector.getBufferQueueDrops();
+        try {
+            Thread.sleep(CLOSE_WAIT_MS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        reader.close();
+    }
+
+    public void writeResults(String path) {
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write("camera,duration_ms," + Point.getHeader() + "\n");
+            for (Point point : mPoints) {
+                writer.write(mCameraId + "," + mDurationMs + "," + point.toString() + "\n");
+            }
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.facebook.camapp.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Camera outages of a run: why the camera went away, how long it took to get frames again
+ * and how many frames were lost meanwhile.
+ * <p>
+ * An outage starts when the device is disconnected or reports an error, and ends with the
+ * first capture result after the camera was reopened. The lost frames are estimated from the
+ * sensor timestamps around the outage and the last frame duration, since frame numbers
+ * restart with every session.
+ */
+public class OutageLog {
+    private static final String TAG = "camapp.outage";
+
+    public static class Outage {
+        public final String mCause;
+        public final long mStartMs;
+        public long mEndMs = -1;
+        // Reopen attempts, including the one that worked
+        public int mAttempts = 0;
+        public long mLostFrames = -1;
+        public boolean mGaveUp = false;
+
+        Outage(String cause, long startMs) {
+            mCause = cause;
+            mStartMs = startMs;
+        }
+
+        public long getDurationMs() {
+            return ((mEndMs < 0) ? SystemClock.elapsedRealtime() : mEndMs) - mStartMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+            str.append("  outage {\n");
+            str.append("    cause: " + mCause + "\n");
+            str.append("    start_ms: " + mStartMs + "\n");
+            str.append("    duration_ms: " + getDurationMs() + "\n");
+            str.append("    recovered: " + (mEndMs >= 0) + "\n");
+            str.append("    gave_up: " + mGaveUp + "\n");
+            str.append("    attempts: " + mAttempts + "\n");
+            str.append("    lost_frames: " + mLostFrames + "\n");
+            str.append("  }\n");
+            return str.toString();
+        }
+    }
+
+    final Vector<Outage> mOutages = new Vector<>();
+    Outage mCurrent = null;
+    // Last frame seen before the outage
+    long mLastTimestampNs = -1;
+    long mLastFrameDurationNs = -1;
+
+    /**
+     * Called for every capture result. Ends the running outage, if any.
+     *
+     * @return true if this frame ended an outage
+     */
+    synchronized boolean onFrame(long timestampNs, long frameDurationNs) {
+        boolean recovered = false;
+        Outage outage = mCurrent;
+        if (outage != null && outage.mAttempts > 0) {
+            outage.mEndMs = SystemClock.elapsedRealtime();
+            if (mLastTimestampNs >= 0 && mLastFrameDurationNs > 0 && timestampNs > mLastTimestampNs) {
+                outage.mLostFrames = Math.max(0,
+                        Math.round((double) (timestampNs - mLastTimestampNs) / mLastFrameDurationNs) - 1);
+            }
+            Log.d(TAG, "Recovered from " + outage.mCause + " in " + outage.getDurationMs() + " ms, lost frames: " +
+                    outage.mLostFrames);
+            mCurrent = null;
+            recovered = true;
+        }
+        mLastTimestampNs = timestampNs;
+        if (frameDurationNs > 0) {
+            mLastFrameDurationNs = frameDurationNs;
+        }
+        return recovered;
+    }
+
+    /**
+     * Starts an outage, unless one is already running (e.g. an error while reopening).
+     *
+     * @return the running outage
+     */
+    synchronized Outage start(String cause) {
+        if (mCurrent == null) {
+            mCurrent = new Outage(cause, SystemClock.elapsedRealtime());
+            mOutages.add(mCurrent);
+            Log.w(TAG, "Camera outage: " + cause);
+        }
+        return mCurrent;
+    }
+
+    synchronized void onAttempt() {
+        if (mCurrent != null) {
+            mCurrent.mAttempts++;
+        }
+    }
+
+    synchronized void giveUp() {
+        if (mCurrent != null) {
+            Log.e(TAG, "Giving up on " + mCurrent.mCause + " after " + mCurrent.mAttempts + " attempts");
+            mCurrent.mGaveUp = true;
+            mCurrent = null;
+        }
+    }
+
+    public synchronized boolean isDown() {
+        return mCurrent != null;
+    }
+
+    public synchronized int getCount() {
+        return mOutages.size();
+    }
+
+    public synchronized long getDowntimeMs() {
+        long total = 0;
+        for (Outage outage : mOutages) {
+            total += outage.getDurationMs();
+        }
+        return total;
+    }
+
+    public synchronized long getLostFrames() {
+        long total = 0;
+        for (Outage outage : mOutages) {
+            if (outage.mLostFrames > 0) {
+                total += outage.mLostFrames;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("outages {\n");
+        str.append("  count: " + mOutages.size() + "\n");
+        str.append("  downtime_ms: " + getDowntimeMs() + "\n");
+        str.append("  lost_frames: " + getLostFrames() + "\n");
+        for (Outage outage : mOutages) {
+            str.append(outage.toString());
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+
+    public void writeResults(String path) {
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write(toString());
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
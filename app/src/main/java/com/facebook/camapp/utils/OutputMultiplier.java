@@ -3,9 +3,11 @@ package com.facebook.camapp.utils;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Choreographer;
 import android.view.Surface;
@@ -16,8 +18,13 @@ import com.facebook.camapp.utils.grafika.EglSurfaceBase;
 import com.facebook.camapp.utils.grafika.FullFrameRect;
 import com.facebook.camapp.utils.grafika.Texture2dProgram;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class OutputMultiplier {
@@ -33,12 +40,46 @@ public class OutputMultiplier {
     final static int WAIT_TIME_SHORT_MS = 3000;  // 3 sec
     private String mName = "OutputMultiplier";
     MessageHandler mMessageHandler;
+    private StartupTimeline mTimeline = new StartupTimeline("OutputMultiplier");
+    private FrameDropDetector mDropDetector = null;
     boolean mDropFrames = true;
     int LATE_LIMIT_NS = 15 * 1000000000; // ms
+    // Sensor timestamp to latch and to swap of camera frames, see setSensorLatency()
+    private volatile boolean mSensorLatency = false;
+    private volatile boolean mSensorRealtime = false;
+    private final LatencyHistogram mLatchLatency = new LatencyHistogram("sensor.latch");
+    private final LatencyHistogram mSwapLatency = new LatencyHistogram("sensor.swap");
 
+    // Serializes the writers of the output arrays, never taken by the renderer
     final private Object mLock = new Object();
-    private final Vector<FrameswapControl> mOutputSurfaces = new Vector<>();
+    // Copy on write: adding or removing an output publishes a new array, the renderer reads
+    // one snapshot per frame without locking
+    private volatile FrameswapControl[] mOutputSurfaces = new FrameswapControl[0];
     Texture2dProgram.ProgramType mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+    // 10-bit EGL surfaces and a full precision program
+    boolean mTenBit = false;
+    // Each added output draws on its own thread, see setThreadedOutputs()
+    boolean mThreaded = false;
+    private volatile OutputThread[] mOutputThreads = new OutputThread[0];
+    // Longest GPU wait for an output to finish sampling the input texture
+    final static long SAMPLE_TIMEOUT_NS = 100 * 1000000L;
+    // Odd while the renderer draws a frame, see awaitFrameEnd()
+    private volatile long mFrameSeq = 0;
+    final static long FRAME_END_POLL_NS = 200 * 1000L;
+    // Longest wait for a removed output thread to finish its swap and release its surface
+    final static long OUTPUT_JOIN_TIMEOUT_MS = 500;
+    // Time from latching a frame to the last output swap, if set
+    private volatile LatencyHistogram mFrameTime = null;
+    // Per output GPU timers, see setGpuTiming()
+    boolean mGpuTiming = false;
+    private final AtomicInteger mGpuTimerCount = new AtomicInteger(0);
+    private volatile boolean mGpuTimingWarned = false;
+    // Time from a new frame being signaled to the renderer picking it up
+    private final LatencyHistogram mFrameWait = new LatencyHistogram("frame.wait");
+    // Frames signaled and not picked up yet, more are dropped
+    final static int FRAME_EVENTS = 64;
+    // Decoded buffers waiting to be rendered, more than the codecs hand out
+    final static int FRAME_BUFFERS = 32;
 
     public OutputMultiplier(Texture2dProgram.ProgramType type) {
         super();
@@ -55,6 +96,53 @@ public class OutputMultiplier {
         return mInputSurface;
     }
 
+    /**
+     * Sets the timeline where EGL_READY, INPUT_SURFACE_READY and FIRST_FRAME are marked.
+     * Must be called before the first surface is added.
+     */
+    public void setStartupTimeline(StartupTimeline timeline) {
+        mTimeline = timeline;
+    }
+
+    public StartupTimeline getStartupTimeline() {
+        return mTimeline;
+    }
+
+    /**
+     * Sets the detector told about every latched and drawn input frame.
+     */
+    public void setDropDetector(FrameDropDetector detector) {
+        mDropDetector = detector;
+    }
+
+    /**
+     * Records how old the camera frames are when latched and when each output's swapBuffers()
+     * returns, measured from their sensor timestamp. Only for camera input.
+     *
+     * @param realtime true if the timestamps are in the elapsedRealtimeNanos() time base
+     *                 (SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME), else System.nanoTime()
+     */
+    public void setSensorLatency(boolean enable, boolean realtime) {
+        mSensorRealtime = realtime;
+        mSensorLatency = enable;
+    }
+
+    public LatencyHistogram getLatchLatency() {
+        return mLatchLatency;
+    }
+
+    public LatencyHistogram getSwapLatency() {
+        return mSwapLatency;
+    }
+
+    private void recordSensorLatency(LatencyHistogram histogram, long timestampNs) {
+        if (!mSensorLatency || timestampNs <= 0) {
+            return;
+        }
+        long nowNs = mSensorRealtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+        histogram.recordNs(nowNs - timestampNs);
+    }
+
     public FrameswapControl addSurface(Surface surface) {
         if (mRenderer != null) {
             return mRenderer.addSurface(surface);
@@ -67,6 +155,132 @@ public class OutputMultiplier {
 
     }
 
+    /**
+     * Renders through RGBA1010102 EGL surfaces with a highp program, so 10-bit input is not
+     * truncated to 8 bits on its way to the outputs. Must be called before the first surface
+     * is added. Falls back to 8-bit if the device has no such EGL config, see is10Bit().
+     * This does not change what the camera delivers into the input surface, still 8-bit.
+     */
+    public void setTenBit(boolean enable) {
+        mTenBit = enable;
+        if (enable) {
+            mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_HIGHP;
+        }
+    }
+
+    /**
+     * Gives every added output (not the first one, which the renderer draws itself) its own
+     * render thread, with an EGL context shared with the renderer one. A blocking
+     * swapBuffers() then only holds back its own output: it gets no new frames until it is
+     * done, while the other outputs keep going. Must be called before the first surface is
+     * added.
+     */
+    public void setThreadedOutputs(boolean enable) {
+        mThreaded = enable;
+    }
+
+    /**
+     * Measures the GPU time of the draws of every output, see GpuTimer. Needs GLES 3 and
+     * GL_EXT_disjoint_timer_query, outputs are not timed without them. Must be called before
+     * the first surface is added.
+     */
+    public void setGpuTiming(boolean enable) {
+        mGpuTiming = enable;
+    }
+
+    /**
+     * The GPU timers of the current outputs, for the ones drawn at least once.
+     */
+    public Vector<GpuTimer> getGpuTimers() {
+        Vector<GpuTimer> timers = new Vector<>();
+        for (FrameswapControl output : mOutputSurfaces) {
+            if (output.getGpuTimer() != null) {
+                timers.add(output.getGpuTimer());
+            }
+        }
+        for (OutputThread output : mOutputThreads) {
+            if (output.mControl.getGpuTimer() != null) {
+                timers.add(output.mControl.getGpuTimer());
+            }
+        }
+        return timers;
+    }
+
+    public void writeGpuTimers(String path) {
+        StringBuilder str = new StringBuilder();
+        for (GpuTimer timer : getGpuTimers()) {
+            str.append(timer.toString());
+        }
+        Log.d(TAG, str.toString());
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write(str.toString());
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean canTimeGpu(EglCore eglCore) {
+        if (!mGpuTiming) {
+            return false;
+        }
+        if (eglCore.getGlVersion() < 3 || !eglCore.hasGlExtension(GpuTimer.EXTENSION)) {
+            if (!mGpuTimingWarned) {
+                mGpuTimingWarned = true;
+                Log.w(TAG, "No GPU timing without GLES 3 and " + GpuTimer.EXTENSION);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // With the context current, once per frame: the disjoint flag for all its timers
+    private boolean readGpuDisjoint(EglCore eglCore) {
+        return canTimeGpu(eglCore) && GpuTimer.readDisjoint();
+    }
+
+    // With the context of the output current. Null if not timing.
+    private GpuTimer getGpuTimer(FrameswapControl output, EglCore eglCore) {
+        if (!canTimeGpu(eglCore)) {
+            return null;
+        }
+        GpuTimer timer = output.getGpuTimer();
+        if (timer == null) {
+            String name = "gpu." + mGpuTimerCount.getAndIncrement() + "." + output.getWidth() + "x" +
+                    output.getHeight();
+            timer = new GpuTimer(name);
+            Log.d(TAG, name + ": timer queries");
+            output.setGpuTimer(timer);
+        }
+        return timer;
+    }
+
+    public boolean isThreadedOutputs() {
+        return mThreaded;
+    }
+
+    private int getEglFlags() {
+        int flags = EglCore.FLAG_RECORDABLE;
+        if (mTenBit) {
+            flags |= EglCore.FLAG_TRY_GLES3 | EglCore.FLAG_10BIT;
+        }
+        if (mThreaded || mGpuTiming) {
+            // Fence syncs, queries
+            flags |= EglCore.FLAG_TRY_GLES3;
+        }
+        return flags;
+    }
+
+    /**
+     * Returns true once the renderer runs on a 10-bit EGL config.
+     */
+    public boolean is10Bit() {
+        EglCore eglCore = mEglCore;
+        return eglCore != null && eglCore.is10Bit();
+    }
+
     public void setName(String name) {
         mName = name;
         if (mRenderer != null) {
@@ -74,7 +288,7 @@ public class OutputMultiplier {
         }
     }
 
-    public EglSurfaceBase addSurfaceTexture(SurfaceTexture surfaceTexture) {
+    public FrameswapControl addSurfaceTexture(SurfaceTexture surfaceTexture) {
         if (mRenderer != null) {
             return mRenderer.addSurfaceTexture(surfaceTexture);
         } else {
@@ -85,9 +299,88 @@ public class OutputMultiplier {
 
     }
 
+    /**
+     * Takes an output out. Never blocks the renderer: a frame in flight still draws on the
+     * old set of outputs, and this returns once that frame is done, so the surface can be
+     * released right after. Threaded outputs release their surface themselves, on their own
+     * thread, which is joined before returning.
+     */
     public void removeFrameSwapControl(FrameswapControl control) {
+        OutputThread removed = null;
         synchronized (mLock) {
-            mOutputSurfaces.remove(control);
+            mOutputSurfaces = removeFrom(mOutputSurfaces, control);
+            for (OutputThread output : mOutputThreads) {
+                if (output.mControl == control) {
+                    removed = output;
+                    break;
+                }
+            }
+            if (removed != null) {
+                mOutputThreads = removeFrom(mOutputThreads, removed);
+            }
+        }
+        awaitFrameEnd();
+        if (removed != null) {
+            removed.quitOutput();
+            try {
+                // May be in swapBuffers(), blocked on the consumer
+                removed.join(OUTPUT_JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (removed.isAlive()) {
+                Log.w(TAG, removed.getName() + ": not done after " + OUTPUT_JOIN_TIMEOUT_MS + " ms");
+            }
+        }
+    }
+
+    /**
+     * Records the time the renderer spends per frame, null to stop.
+     */
+    public void setFrameTimeHistogram(LatencyHistogram histogram) {
+        mFrameTime = histogram;
+    }
+
+    /**
+     * Delay between a frame being signaled (onFrameAvailable or a decoded buffer) and the
+     * renderer waking up for it. When several frames are pending, only the oldest counts.
+     */
+    public LatencyHistogram getFrameWait() {
+        return mFrameWait;
+    }
+
+    public int getOutputCount() {
+        return mOutputSurfaces.length + mOutputThreads.length;
+    }
+
+    private static <T> T[] appendTo(T[] array, T item) {
+        T[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = item;
+        return copy;
+    }
+
+    private static <T> T[] removeFrom(T[] array, T item) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == item) {
+                T[] copy = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                return copy;
+            }
+        }
+        return array;
+    }
+
+    // Waits out the frame the renderer is drawing, if any. The renderer bumps mFrameSeq
+    // before taking its snapshot of the outputs, so any frame started after this call sees
+    // the arrays published before it.
+    private void awaitFrameEnd() {
+        long seq = mFrameSeq;
+        if ((seq & 1) == 0 || Thread.currentThread() == mRenderer) {
+            return;
+        }
+        long deadlineMs = System.currentTimeMillis() + WAIT_TIME_SHORT_MS;
+        while (mFrameSeq == seq && System.currentTimeMillis() < deadlineMs) {
+            LockSupport.parkNanos(FRAME_END_POLL_NS);
         }
     }
 
@@ -115,6 +408,10 @@ public class OutputMultiplier {
         }
     }
 
+    /**
+     * Renders a decoded buffer, for a decoder feeding the outputs instead of the camera. One
+     * decoder only, always calling from the same thread, see FrameBufferPool.
+     */
     public void newFrameAvailableInBuffer(MediaCodec codec, int bufferId, MediaCodec.BufferInfo info) {
         if (mRenderer != null) { // it will be null if no surface is connected
             mRenderer.newFrameAvailableInBuffer(codec, bufferId, info);
@@ -172,6 +469,211 @@ public class OutputMultiplier {
         }
     }
 
+    /**
+     * Draws one output on its own thread. The input texture is shared with the renderer
+     * context: the renderer hands over each frame with a fence the output GPU work waits on,
+     * and gets back a fence for the end of the sampling, which it waits on before latching the
+     * next input buffer. The output is busy until its swapBuffers() returns, and skips the
+     * frames offered meanwhile.
+     */
+    private class OutputThread extends Thread {
+        private Object mSurfaceObject;
+        private EglCore mOutputEglCore;
+        FrameswapControl mControl;
+        private FullFrameRect mBlit;
+        private final CountDownLatch mReady = new CountDownLatch(1);
+        private final Object mFrameLock = new Object();
+        private final float[] mMatrix = new float[16];
+        private long mTimestamp = 0;
+        private long mFrameFence = 0;
+        private long mSampledFence = 0;
+        // A frame was handed over and not drawn yet
+        private boolean mPending = false;
+        // From taking a frame to the end of its swapBuffers()
+        private boolean mBusy = false;
+        private boolean mSampled = false;
+        private volatile boolean mQuit = false;
+        // Renderer side: the last frame offered was taken
+        boolean mOffered = false;
+        long mDrawn = 0;
+        long mSkipped = 0;
+
+        OutputThread(Object surface) {
+            super(mName + ".output");
+            mSurfaceObject = surface;
+        }
+
+        FrameswapControl setup() {
+            start();
+            try {
+                mReady.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return mControl;
+        }
+
+        @Override
+        public void run() {
+            mOutputEglCore = new EglCore(mEglCore.getContext(), getEglFlags());
+            if (mSurfaceObject instanceof SurfaceTexture) {
+                mControl = new FrameswapControl(mOutputEglCore, (SurfaceTexture) mSurfaceObject);
+            } else {
+                mControl = new FrameswapControl(mOutputEglCore, (Surface) mSurfaceObject, true);
+            }
+            mSurfaceObject = null;
+            mControl.makeCurrent();
+            mBlit = new FullFrameRect(new Texture2dProgram(mProgramType));
+            mReady.countDown();
+            this.setPriority(Thread.MAX_PRIORITY);
+            while (!mQuit) {
+                synchronized (mFrameLock) {
+                    try {
+                        if (!mPending) {
+                            mFrameLock.wait(WAIT_TIME_SHORT_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    if (mQuit || !mPending) {
+                        continue;
+                    }
+                }
+                drawFrame();
+            }
+            Log.d(TAG, getName() + " drawn: " + mDrawn + ", skipped: " + mSkipped);
+            GpuTimer timer = mControl.getGpuTimer();
+            if (timer != null) {
+                timer.release();
+            }
+            synchronized (mFrameLock) {
+                // Removed before the renderer collected it
+                if (mSampledFence != 0) {
+                    GLES30.glDeleteSync(mSampledFence);
+                    mSampledFence = 0;
+                }
+            }
+            mBlit.release(true);
+            mControl.release();
+            mOutputEglCore.release();
+        }
+
+        private void drawFrame() {
+            mControl.makeCurrent();
+            if (mFrameFence != 0) {
+                GLES30.glWaitSync(mFrameFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            }
+            GpuTimer timer = getGpuTimer(mControl, mOutputEglCore);
+            if (timer != null) {
+                // Own context, one timer
+                timer.begin(GpuTimer.readDisjoint());
+            }
+            float[] mvp = mControl.prepareDraw();
+            mBlit.drawFrame(mTextureId, mControl.getTexMatrix(mMatrix), mvp);
+            if (timer != null) {
+                timer.end();
+            }
+            long sampled = 0;
+            if (mOutputEglCore.getGlVersion() >= 3) {
+                sampled = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                GLES20.glFlush();
+            } else {
+                GLES20.glFinish();
+            }
+            synchronized (mFrameLock) {
+                if (mSampledFence != 0) {
+                    // The renderer gave up on the previous frame and never collected it
+                    GLES30.glDeleteSync(mSampledFence);
+                }
+                mSampledFence = sampled;
+                mSampled = true;
+                mPending = false;
+                mFrameLock.notifyAll();
+            }
+            try {
+                mControl.setPresentationTime(mTimestamp);
+                mControl.swapBuffers();
+                recordSensorLatency(mSwapLatency, mTimestamp);
+                mDrawn++;
+            } catch (Exception ex) {
+                Log.e(TAG, "Exception when drawing: " + ex);
+            }
+            synchronized (mFrameLock) {
+                mBusy = false;
+            }
+        }
+
+        // Renderer side
+        boolean isBusy() {
+            synchronized (mFrameLock) {
+                return mBusy || mQuit;
+            }
+        }
+
+        // Renderer side, a frame the output wanted but could not take
+        void countSkipped() {
+            synchronized (mFrameLock) {
+                mSkipped++;
+            }
+        }
+
+        // Renderer side, returns false if the output is still busy with the previous frame
+        boolean offer(long timestamp, float[] matrix, long fence) {
+            synchronized (mFrameLock) {
+                if (mBusy || mQuit) {
+                    mSkipped++;
+                    return false;
+                }
+                System.arraycopy(matrix, 0, mMatrix, 0, mMatrix.length);
+                mTimestamp = timestamp;
+                mFrameFence = fence;
+                mBusy = true;
+                mPending = true;
+                mSampled = false;
+                mFrameLock.notifyAll();
+                return true;
+            }
+        }
+
+        // Renderer side, with its context current. Waits until the frame offered last was
+        // sampled, on the CPU and then on the GPU. Returns false if it was not in time.
+        boolean awaitSampled() {
+            long fence;
+            synchronized (mFrameLock) {
+                long deadlineMs = System.currentTimeMillis() + WAIT_TIME_SHORT_MS;
+                long waitMs;
+                while (!mSampled && !mQuit && (waitMs = deadlineMs - System.currentTimeMillis()) > 0) {
+                    try {
+                        mFrameLock.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        break;
+                    }
+                }
+                if (!mSampled && !mQuit) {
+                    // Still reading the texture, its fence is collected by the next call
+                    // or deleted by this thread
+                    Log.w(TAG, getName() + ": frame not sampled in time");
+                    return false;
+                }
+                fence = mSampledFence;
+                mSampledFence = 0;
+            }
+            if (fence != 0) {
+                GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, SAMPLE_TIMEOUT_NS);
+                GLES30.glDeleteSync(fence);
+            }
+            return true;
+        }
+
+        void quitOutput() {
+            mQuit = true;
+            synchronized (mFrameLock) {
+                mFrameLock.notifyAll();
+            }
+        }
+    }
+
     private class Renderer extends Thread implements SurfaceTexture.OnFrameAvailableListener {
 
         private long mLatestTimestamp = 0;
@@ -181,20 +683,29 @@ public class OutputMultiplier {
         int mWidth = -1;
         int mHeight = -1;
 
-        // So, we can ignore sync...
-        private int frameAvailable = 0;
-        // Waiting for incoming frames on input surface
-        private final Object mInputFrameLock = new Object();
-        //Notify threads waiting for painted surfaces
-        private final Object mFrameDrawnLock = new Object();
+        // New input frames, with the time they were signaled. The producers are the
+        // SurfaceTexture callback and the decoder threads, the consumer this thread.
+        private final FrameEventRing mFrameEvents = new FrameEventRing(FRAME_EVENTS);
+        private final long[] mPendingEvents = new long[FRAME_EVENTS];
+        // Drawn frames, for awaitNewImage()
+        private volatile long mDrawnSeq = 0;
+        private volatile long mDrawnTimestamp = 0;
+        private volatile Thread mDrawnWaiter = null;
         // Wait for vsynch and to synch with display
         private final Object mVSynchLock = new Object();
         private final Object mSizeLock = new Object();
         // temporary object
         private Object mSurfaceObject;
-        boolean mDone = false;
+        volatile boolean mDone = false;
+        boolean mFirstFrameDrawn = false;
+        // Released once the master surface and the EGL context exist
+        private final CountDownLatch mMasterReady = new CountDownLatch(1);
+        // Fence after the last latch, waited on by the threaded outputs
+        private long mInputFence = 0;
+        // Threaded outputs whose rate policy took the last frame
+        private int mThreadsWanting = 0;
 
-        ConcurrentLinkedQueue<FrameBuffer> mFrameBuffers = new ConcurrentLinkedQueue<>();
+        final FrameBufferPool mFrameBuffers = new FrameBufferPool(FRAME_BUFFERS);
 
         public Renderer(Object surface) {
             super("Outputmultiplier Renderer");
@@ -204,7 +715,8 @@ public class OutputMultiplier {
         @Override
         public void run() {
             Log.d(TAG, "Start rend");
-            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+            mEglCore = new EglCore(null, getEglFlags());
+            Log.d(TAG, "EGL config 10-bit: " + mEglCore.is10Bit());
             FrameswapControl windowSurface = null;
             if (mSurfaceObject instanceof SurfaceTexture){
                 mMasterSurface = new FrameswapControl(mEglCore, (SurfaceTexture)mSurfaceObject);
@@ -214,12 +726,16 @@ public class OutputMultiplier {
                 throw new RuntimeException("No surface or SurfaceTexture available: " + mSurfaceObject);
             }
             mSurfaceObject = null; // we do not need it anymore
-            mOutputSurfaces.add(mMasterSurface);
+            synchronized (mLock) {
+                mOutputSurfaces = appendTo(mOutputSurfaces, mMasterSurface);
+            }
             mMasterSurface.makeCurrent();
             mFullFrameBlit = new FullFrameRect(
                     new Texture2dProgram(mProgramType));
             mTextureId = mFullFrameBlit.createTextureObject();
             mInputTexture = new SurfaceTexture(mTextureId);
+            mTimeline.mark(StartupTimeline.Stage.EGL_READY);
+            mMasterReady.countDown();
 
             // We need to know how big the texture should be
             synchronized(mSizeLock) {
@@ -237,23 +753,27 @@ public class OutputMultiplier {
             }
             mInputTexture.setOnFrameAvailableListener(this);
             mInputSurface = new Surface(mInputTexture);
+            mTimeline.mark(StartupTimeline.Stage.INPUT_SURFACE_READY);
             this.setPriority(Thread.MAX_PRIORITY);
             while (!mDone) {
-                synchronized (mInputFrameLock) {
-                    try {
-                        if (frameAvailable <= 0) {
-                            mInputFrameLock.wait(WAIT_TIME_SHORT_MS);
-                        }
-
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                if (!mFrameEvents.await(WAIT_TIME_SHORT_MS * 1000000L)) {
+                    continue;
                 }
                 if (mDone) break;
-                if (mFrameBuffers.size() > 0) {
+                // Everything signaled so far, in one pass
+                int count = mFrameEvents.drain(mPendingEvents);
+                mFrameWait.recordNs(System.nanoTime() - mPendingEvents[0]);
+                if (!mFrameBuffers.isEmpty()) {
                     drawFrameFromBuffer();
                 } else {
-                    drawFrameImmediate();
+                    // Only the newest frame is drawn if late frames can be dropped
+                    int skip = mDropFrames ? count - 1 : 0;
+                    for (int i = 0; i < skip; i++) {
+                        skipFrame();
+                    }
+                    for (int i = skip; i < count; i++) {
+                        drawFrameImmediate();
+                    }
                 }
             }
         }
@@ -279,46 +799,134 @@ public class OutputMultiplier {
 
         public FrameswapControl setup(){
             this.start();
-            while (mMasterSurface == null) {
-                try {
-                    sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            try {
+                mMasterReady.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
             return mMasterSurface;
         }
 
         public FrameswapControl addSurface(Surface surface) {
-            FrameswapControl windowSurface = null;
+            if (mThreaded) {
+                return addOutputThread(surface);
+            }
+            FrameswapControl windowSurface = new FrameswapControl(mEglCore, surface, true);
             synchronized (mLock) {
-                windowSurface = new FrameswapControl(mEglCore, surface, true);
-
-                mOutputSurfaces.add(windowSurface);
+                mOutputSurfaces = appendTo(mOutputSurfaces, windowSurface);
             }
-
             return windowSurface;
         }
 
         public FrameswapControl addSurfaceTexture(SurfaceTexture texture) {
-            FrameswapControl windowSurface = null;
+            if (mThreaded) {
+                return addOutputThread(texture);
+            }
+            FrameswapControl windowSurface = new FrameswapControl(mEglCore, texture);
             synchronized (mLock) {
-                windowSurface = new FrameswapControl(mEglCore, texture);
-
-                mOutputSurfaces.add(windowSurface);
+                mOutputSurfaces = appendTo(mOutputSurfaces, windowSurface);
             }
             return windowSurface;
         }
 
-        private long awaitNewImage() {
-            synchronized (mFrameDrawnLock) {
-                try {
-                    mFrameDrawnLock.wait(WAIT_TIME_SHORT_MS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        private FrameswapControl addOutputThread(Object surface) {
+            OutputThread output = new OutputThread(surface);
+            FrameswapControl control = output.setup();
+            synchronized (mLock) {
+                mOutputThreads = appendTo(mOutputThreads, output);
+            }
+            return control;
+        }
+
+        // Before latching a new input buffer, the threaded outputs must be done sampling
+        // the current one. Call with the master surface current.
+        // Returns false if an output is still sampling the input texture: the next buffer
+        // must not be latched, and the output is waited for again with the next frame
+        private boolean waitForOutputs(OutputThread[] outputs) {
+            if (!mThreaded) {
+                return true;
+            }
+            boolean sampled = true;
+            for (OutputThread output : outputs) {
+                if (!output.mOffered) {
+                    continue;
                 }
+                if (output.awaitSampled()) {
+                    output.mOffered = false;
+                } else {
+                    sampled = false;
+                }
+            }
+            if (sampled && mInputFence != 0) {
+                GLES30.glDeleteSync(mInputFence);
+                mInputFence = 0;
+            }
+            return sampled;
+        }
+
+        // Hands the latched frame to the threaded outputs that want it and are idle, returns
+        // how many took it. Sets mThreadsWanting.
+        private int offerToOutputs(OutputThread[] outputs) {
+            mThreadsWanting = 0;
+            if (!mThreaded || outputs.length == 0) {
+                return 0;
+            }
+            boolean fenced = false;
+            int counter = 0;
+            for (OutputThread output : outputs) {
+                // Only this thread makes an output busy, so an idle one takes the offer below.
+                // A busy one only counts as skipped if its policy wanted the frame, and the
+                // policy state does not move for it.
+                if (output.isBusy()) {
+                    if (output.mControl.wouldKeepFrame(mLatestTimestamp)) {
+                        output.countSkipped();
+                        mThreadsWanting += 1;
+                    }
+                    continue;
+                }
+                if (!output.mControl.keepFrame(mLatestTimestamp)) {
+                    continue;
+                }
+                mThreadsWanting += 1;
+                if (!fenced) {
+                    // Only if someone draws the frame
+                    if (mEglCore.getGlVersion() >= 3) {
+                        // The outputs' GPU work waits for the latch
+                        mInputFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                        GLES20.glFlush();
+                    } else {
+                        GLES20.glFinish();
+                    }
+                    fenced = true;
+                }
+                if (output.offer(mLatestTimestamp, mTmpMatrix, mInputFence)) {
+                    output.mOffered = true;
+                    counter += 1;
+                }
+            }
+            return counter;
+        }
+
+        // Parks until the next frame is drawn, one waiting thread at a time
+        private long awaitNewImage() {
+            long seq = mDrawnSeq;
+            mDrawnWaiter = Thread.currentThread();
+            long deadlineNs = System.nanoTime() + WAIT_TIME_SHORT_MS * 1000000L;
+            long waitNs;
+            while (mDrawnSeq == seq && (waitNs = deadlineNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, waitNs);
+            }
+            mDrawnWaiter = null;
+            return mDrawnTimestamp;
+        }
+
+        private void signalDrawn() {
+            mDrawnTimestamp = mLatestTimestamp;
+            mDrawnSeq++;
+            Thread waiter = mDrawnWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
             }
-            return mLatestTimestamp;
         }
 
         public void drawFrameFromBuffer(){
@@ -326,13 +934,11 @@ public class OutputMultiplier {
                 Log.d(TAG, "Skipping drawFrame after shutdown");
                 return;
             }
-            while (mFrameBuffers.size() > 0) {
+            FrameBuffer buffer;
+            boolean anyDrawn = false;
+            while ((buffer = mFrameBuffers.peek()) != null) {
+                int counter;
                 synchronized (mVSynchLock) {
-                    FrameBuffer buffer = mFrameBuffers.poll();
-                    if (buffer ==  null) {
-                        break;
-                    }
-
                     if (mTimestamp0 == -1) {
                         mTimestamp0 = buffer.mInfo.presentationTimeUs;
                     }
@@ -344,37 +950,67 @@ public class OutputMultiplier {
                             e.printStackTrace();
                         }
                     }
+                    boolean released = true;
                     try {
                         buffer.mCodec.releaseOutputBuffer(buffer.mBufferId, true);
                     } catch (IllegalStateException ise){
                         // not important
+                        released = false;
+                    }
+                    // The slot goes back to the decoder side
+                    mFrameBuffers.recycle();
+                    if (!released) {
                         break;
                     }
                     if (mDropFrames && (diff - mCurrentVsync < 0)) {
                         continue;
                     }
                     mMasterSurface.makeCurrent();
+                    if (!waitForOutputs(mOutputThreads)) {
+                        // Dropped, a newer buffer is latched next time
+                        continue;
+                    }
                     mInputTexture.updateTexImage();
                     mInputTexture.getTransformMatrix(mTmpMatrix);
                     mLatestTimestamp = mInputTexture.getTimestamp();
-
+                    counter = offerToOutputs(mOutputThreads);
                 }
 
-                synchronized (mLock) {
-                    for (EglSurfaceBase surface : mOutputSurfaces) {
+                long startNs = System.nanoTime();
+                boolean disjoint = readGpuDisjoint(mEglCore);
+                mFrameSeq++;
+                try {
+                    for (FrameswapControl surface : mOutputSurfaces) {
+                        if (!surface.keepFrame(mLatestTimestamp)) {
+                            continue;
+                        }
+                        counter += 1;
                         surface.makeCurrent();
-                        int width = surface.getWidth();
-                        int height = surface.getHeight();
-                        GLES20.glViewport(0, 0, width, height);
-                        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+                        GpuTimer timer = getGpuTimer(surface, mEglCore);
+                        if (timer != null) {
+                            timer.begin(disjoint);
+                        }
+                        float[] mvp = surface.prepareDraw();
+                        mFullFrameBlit.drawFrame(mTextureId, surface.getTexMatrix(mTmpMatrix), mvp);
+                        if (timer != null) {
+                            timer.end();
+                        }
                         surface.setPresentationTime(mLatestTimestamp);
                         surface.swapBuffers();
                     }
+                } finally {
+                    mFrameSeq++;
+                }
+                if (counter == 0) {
+                    // Left out by every output
+                    continue;
                 }
+                anyDrawn = true;
+                recordFrameTime(startNs);
+                markFirstFrame();
             }
-            synchronized (mFrameDrawnLock) {
-                frameAvailable = (frameAvailable > 0)? frameAvailable - 1: 0;
-                mFrameDrawnLock.notifyAll();
+            if (anyDrawn) {
+                signalDrawn();
             }
         }
 
@@ -383,64 +1019,150 @@ public class OutputMultiplier {
                 Log.d(TAG, "Skipping drawFrame after shutdown");
                 return;
             }
+            long startNs = System.nanoTime();
+            // Odd from before the snapshot to after the last use of it
+            boolean drawn;
+            mFrameSeq++;
+            try {
+                drawn = drawOutputs();
+            } finally {
+                mFrameSeq++;
+            }
+            if (!drawn) {
+                return;
+            }
+            recordFrameTime(startNs);
+            markFirstFrame();
+
+            signalDrawn();
+        }
+
+        // Latches a frame without drawing it, counted as a GL drop for the outputs that
+        // wanted it. The rate policies still see the frame, like when it is drawn.
+        private void skipFrame() {
+            OutputThread[] threads = mOutputThreads;
+            mMasterSurface.makeCurrent();
+            if (!waitForOutputs(threads)) {
+                return;
+            }
+            mInputTexture.updateTexImage();
+            long timestamp = mInputTexture.getTimestamp();
+            int wanting = 0;
+            for (FrameswapControl surface : mOutputSurfaces) {
+                if (surface.keepFrame(timestamp)) {
+                    wanting += 1;
+                }
+            }
+            if (mThreaded) {
+                for (OutputThread output : threads) {
+                    // Same rule as offerToOutputs(), a busy output's policy does not move
+                    boolean wanted = output.isBusy() ? output.mControl.wouldKeepFrame(timestamp)
+                            : output.mControl.keepFrame(timestamp);
+                    if (wanted) {
+                        output.countSkipped();
+                        wanting += 1;
+                    }
+                }
+            }
+            FrameDropDetector dropDetector = mDropDetector;
+            if (dropDetector != null) {
+                dropDetector.onFrameLatched(timestamp);
+                dropDetector.onFrameDrawn(0, wanting);
+            }
+        }
+
+        // Returns false if nothing was drawn: the frame was not latched, see waitForOutputs(),
+        // or every output left it out
+        private boolean drawOutputs() {
+            FrameswapControl[] outputs = mOutputSurfaces;
+            OutputThread[] threads = mOutputThreads;
             mMasterSurface.makeCurrent();
+            if (!waitForOutputs(threads)) {
+                return false;
+            }
             mInputTexture.updateTexImage();
             mInputTexture.getTransformMatrix(mTmpMatrix);
             mLatestTimestamp = mInputTexture.getTimestamp();
-
-            synchronized (mLock) {
-                int counter = 0;
-                for (FrameswapControl surface : mOutputSurfaces) {
-                    try {
-                        if (surface.keepFrame()) {
-
-                            surface.makeCurrent();
-                            int width = surface.getWidth();
-                            int height = surface.getHeight();
-                            GLES20.glViewport(0, 0, width, height);
-                            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-                            counter += 1;
-                            surface.setPresentationTime(mLatestTimestamp);
-                            surface.swapBuffers();
-                        }
+            recordSensorLatency(mLatchLatency, mLatestTimestamp);
+            FrameDropDetector dropDetector = mDropDetector;
+            if (dropDetector != null) {
+                dropDetector.onFrameLatched(mLatestTimestamp);
+            }
+            int counter = offerToOutputs(threads);
+            // The inline outputs share the renderer context and its disjoint flag
+            boolean disjoint = readGpuDisjoint(mEglCore);
+            // Outputs left out by their rate policy do not count as skipped
+            int wanting = mThreadsWanting;
+            for (FrameswapControl surface : outputs) {
+                if (!surface.keepFrame(mLatestTimestamp)) {
+                    continue;
+                }
+                wanting += 1;
+                try {
+                    surface.makeCurrent();
+                    GpuTimer timer = getGpuTimer(surface, mEglCore);
+                    if (timer != null) {
+                        timer.begin(disjoint);
                     }
-                    catch(Exception ex) {
-                        Log.e(TAG, "Exception when drawing: " + ex);
+                    // Own viewport, rotation and crop, all in the one blit
+                    float[] mvp = surface.prepareDraw();
+                    mFullFrameBlit.drawFrame(mTextureId, surface.getTexMatrix(mTmpMatrix), mvp);
+                    if (timer != null) {
+                        timer.end();
                     }
+                    counter += 1;
+                    surface.setPresentationTime(mLatestTimestamp);
+                    surface.swapBuffers();
+                    recordSensorLatency(mSwapLatency, mLatestTimestamp);
+                }
+                catch(Exception ex) {
+                    Log.e(TAG, "Exception when drawing: " + ex);
                 }
             }
+            if (dropDetector != null) {
+                dropDetector.onFrameDrawn(counter, wanting);
+            }
+            return counter > 0;
+        }
+
+        private void recordFrameTime(long startNs) {
+            LatencyHistogram frameTime = mFrameTime;
+            if (frameTime != null) {
+                frameTime.recordNs(System.nanoTime() - startNs);
+            }
+        }
 
-            synchronized (mFrameDrawnLock) {
-                frameAvailable = (frameAvailable > 0)? frameAvailable - 1: 0;
-                mFrameDrawnLock.notifyAll();
+        private void markFirstFrame() {
+            if (!mFirstFrameDrawn) {
+                mFirstFrameDrawn = true;
+                mTimeline.mark(StartupTimeline.Stage.FIRST_FRAME);
             }
         }
+
         @Override
         public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-            synchronized (mInputFrameLock) {
-                frameAvailable += 1;
-                mInputFrameLock.notifyAll();
-            }
+            mFrameEvents.offer(System.nanoTime());
         }
 
         public void newFrameAvailableInBuffer(MediaCodec codec, int id, MediaCodec.BufferInfo info) {
-            synchronized (mInputFrameLock) {
-                mFrameBuffers.offer(new FrameBuffer(codec, id, info));
-                frameAvailable += 1;
-                mInputFrameLock.notifyAll();
+            if (mFrameBuffers.offer(codec, id, info)) {
+                mFrameEvents.offer(System.nanoTime());
             }
         }
         public void newFrameAvailable() {
-            synchronized (mInputFrameLock) {
-                frameAvailable += 1;
-                mInputFrameLock.notifyAll();
-            }
+            mFrameEvents.offer(System.nanoTime());
         }
         public void quit() {
             mDone = true;
-            synchronized (mInputFrameLock) {
-                mInputFrameLock.notifyAll();
+            OutputThread[] outputs;
+            synchronized (mLock) {
+                outputs = mOutputThreads;
+                mOutputThreads = new OutputThread[0];
+            }
+            for (OutputThread output : outputs) {
+                output.quitOutput();
             }
+            mFrameEvents.wakeup();
         }
 
         public void confirmSize(int width, int height) {
@@ -0,0 +1,212 @@
+package com.facebook.camapp.utils;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Steps one sensor parameter through a list of values, one value per frame, using a
+ * repeating burst. The requests are built once, ahead of time, and every result is matched
+ * back to the step that produced it through the request tag.
+ */
+public class ParameterSweep {
+    private static final String TAG = "camapp.sweep";
+    // HALs quantize exposure to the sensor line time and round durations, so the reported
+    // times are compared within 1%, or about a line time for short ones
+    final static double TIME_TOLERANCE = 0.01;
+    final static long MIN_TIME_TOLERANCE_NS = 20000;
+
+    public enum Parameter {
+        SENSITIVITY,     // ISO
+        EXPOSURE_TIME,   // ns
+        FRAME_DURATION   // ns
+    }
+
+    final Parameter mParameter;
+    final long[] mValues;
+
+    // Per step statistics
+    final int[] mResultCount;
+    final int[] mMismatchCount;
+    final long[] mFirstFrameNumber;
+    final long[] mLastFrameNumber;
+    final double[] mSensitivitySum;
+    final double[] mExposureTimeSum;
+    final double[] mFrameDurationSum;
+    int mUnmatched = 0;
+
+    public ParameterSweep(Parameter parameter, long[] values) {
+        mParameter = parameter;
+        mValues = values;
+        mResultCount = new int[values.length];
+        mMismatchCount = new int[values.length];
+        mFirstFrameNumber = new long[values.length];
+        mLastFrameNumber = new long[values.length];
+        mSensitivitySum = new double[values.length];
+        mExposureTimeSum = new double[values.length];
+        mFrameDurationSum = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            mFirstFrameNumber[i] = -1;
+        }
+    }
+
+    /**
+     * Parses a sweep description like "iso:100,200,400", "exp_usec:1000,2000" or
+     * "dur_usec:33333,16666". Times are given in usec, like the other camapp settings.
+     */
+    public static ParameterSweep parse(String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Bad sweep: " + spec);
+        }
+        Parameter parameter;
+        long scale = 1;
+        switch (parts[0].trim()) {
+            case "iso":
+                parameter = Parameter.SENSITIVITY;
+                break;
+            case "exp_usec":
+                parameter = Parameter.EXPOSURE_TIME;
+                scale = 1000;
+                break;
+            case "dur_usec":
+                parameter = Parameter.FRAME_DURATION;
+                scale = 1000;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sweep parameter: " + parts[0]);
+        }
+        String[] items = parts[1].split(",");
+        long[] values = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = Long.parseLong(items[i].trim()) * scale;
+        }
+        return new ParameterSweep(parameter, values);
+    }
+
+    public Parameter getParameter() {
+        return mParameter;
+    }
+
+    /**
+     * Builds one request per step from builder. The builder should already contain the
+     * targets and any other manual setting; AE is turned off so the values are applied as is.
+     */
+    public List<CaptureRequest> buildRequests(CaptureRequest.Builder builder) {
+        ArrayList<CaptureRequest> requests = new ArrayList<>(mValues.length);
+        builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+        for (int i = 0; i < mValues.length; i++) {
+            switch (mParameter) {
+                case SENSITIVITY:
+                    builder.set(CaptureRequest.SENSOR_SENSITIVITY, (int) mValues[i]);
+                    break;
+                case EXPOSURE_TIME:
+                    builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mValues[i]);
+                    break;
+                case FRAME_DURATION:
+                    builder.set(CaptureRequest.SENSOR_FRAME_DURATION, mValues[i]);
+                    break;
+            }
+            builder.setTag(Integer.valueOf(i));
+            requests.add(builder.build());
+        }
+        builder.setTag(null);
+        Log.d(TAG, "Sweep " + mParameter + " over " + mValues.length + " steps");
+        return requests;
+    }
+
+    static boolean isClose(long value, long target) {
+        long tolerance = Math.max(MIN_TIME_TOLERANCE_NS, (long) (target * TIME_TOLERANCE));
+        return Math.abs(value - target) <= tolerance;
+    }
+
+    /**
+     * Accounts a completed capture to the sweep step of the request that produced it.
+     */
+    public synchronized void onCaptureCompleted(CaptureRequest request, TotalCaptureResult result) {
+        Object tag = request.getTag();
+        if (!(tag instanceof Integer)) {
+            mUnmatched++;
+            return;
+        }
+        int step = (Integer) tag;
+        if (step < 0 || step >= mValues.length) {
+            mUnmatched++;
+            return;
+        }
+        long frameNumber = result.getFrameNumber();
+        if (mFirstFrameNumber[step] < 0) {
+            mFirstFrameNumber[step] = frameNumber;
+        }
+        mLastFrameNumber[step] = frameNumber;
+        mResultCount[step]++;
+
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        boolean matched = false;
+        if (sensitivity != null) {
+            mSensitivitySum[step] += sensitivity;
+            if (mParameter == Parameter.SENSITIVITY) matched = (sensitivity == mValues[step]);
+        }
+        if (exposureTime != null) {
+            mExposureTimeSum[step] += exposureTime;
+            if (mParameter == Parameter.EXPOSURE_TIME) matched = isClose(exposureTime, mValues[step]);
+        }
+        if (frameDuration != null) {
+            mFrameDurationSum[step] += frameDuration;
+            if (mParameter == Parameter.FRAME_DURATION) {
+                // Stretched to fit the exposure if that one is longer
+                Long requestedExposure = request.get(CaptureRequest.SENSOR_EXPOSURE_TIME);
+                long target = (requestedExposure != null) ? Math.max(mValues[step], requestedExposure) : mValues[step];
+                matched = isClose(frameDuration, target);
+            }
+        }
+        if (!matched) {
+            mMismatchCount[step]++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("parameter_sweep {\n");
+        str.append("  parameter: " + mParameter + "\n");
+        str.append("  unmatched_results: " + mUnmatched + "\n");
+        for (int i = 0; i < mValues.length; i++) {
+            int count = mResultCount[i];
+            str.append("  step {\n");
+            str.append("    index: " + i + "\n");
+            str.append("    requested: " + mValues[i] + "\n");
+            str.append("    results: " + count + "\n");
+            str.append("    mismatches: " + mMismatchCount[i] + "\n");
+            str.append("    first_frame_number: " + mFirstFrameNumber[i] + "\n");
+            str.append("    last_frame_number: " + mLastFrameNumber[i] + "\n");
+            if (count > 0) {
+                str.append(String.format("    avg_sensitivity: %.1f\n", mSensitivitySum[i] / count));
+                str.append(String.format("    avg_exposure_time_ms: %.3f\n", mExposureTimeSum[i] / count / 1000000.0));
+                str.append(String.format("    avg_frame_duration_ms: %.3f\n", mFrameDurationSum[i] / count / 1000000.0));
+            }
+            str.append("  }\n");
+        }
+        str.append("}\n");
+        return str.toString();
+    }
+
+    public void writeResults(String path) {
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write(toString());
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
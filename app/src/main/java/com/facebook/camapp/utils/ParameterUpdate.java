@@ -0,0 +1,152 @@
+package com.facebook.camapp.utils;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks a live parameter change on a running session: how many frames and how much time
+ * pass from submitting the new repeating request until (a) the first result produced by it
+ * and (b) the first result that reports the new values.
+ * <p>
+ * Every request submitted on the session after the update carries its values, so they are
+ * all added with addRequests(). If the session goes away first the update fails.
+ */
+public class ParameterUpdate {
+    private static final String TAG = "camapp.update";
+    // Stop waiting for the values to show up after this many frames of the new request
+    final static int MAX_APPLY_FRAMES = 60;
+
+    public interface Listener {
+        void onParameterUpdate(ParameterUpdate update);
+    }
+
+    // Written by the submitting threads, read by the result thread
+    final CopyOnWriteArrayList<CaptureRequest> mRequests;
+    final long mSubmitNs;
+    final int mSensitivity;
+    final long mExposureTimeNs;
+    final long mFrameDurationNs;
+    final Range<Integer> mFpsRange;
+    final Listener mListener;
+
+    int mFrames = 0;
+    int mNewRequestFrames = 0;
+    // Until the first result of the new request
+    public int mRequestFrames = -1;
+    public double mRequestMs = -1;
+    // Until the first result reporting the new values
+    public int mAppliedFrames = -1;
+    public double mAppliedMs = -1;
+    // The session went away before the values were reported
+    public boolean mFailed = false;
+
+    ParameterUpdate(List<CaptureRequest> requests, int sensitivity, long exposureTimeNs,
+                    long frameDurationNs, Range<Integer> fpsRange, Listener listener) {
+        mRequests = new CopyOnWriteArrayList<>(requests);
+        mSensitivity = sensitivity;
+        mExposureTimeNs = exposureTimeNs;
+        mFrameDurationNs = frameDurationNs;
+        mFpsRange = fpsRange;
+        mListener = listener;
+        mSubmitNs = System.nanoTime();
+    }
+
+    /**
+     * A request rebuilt from the updated values, e.g. a 3A step or new outputs.
+     */
+    void addRequests(List<CaptureRequest> requests) {
+        mRequests.addAll(requests);
+    }
+
+    /**
+     * The session was closed or rebuilt before the update completed.
+     */
+    void fail(String cause) {
+        mFailed = true;
+        Log.w(TAG, "Update failed: " + cause);
+        if (mListener != null) {
+            mListener.onParameterUpdate(this);
+        }
+    }
+
+    private boolean isNewRequest(CaptureRequest request) {
+        for (CaptureRequest r : mRequests) {
+            if (r == request) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean valuesApplied(TotalCaptureResult result) {
+        if (mSensitivity > 0) {
+            Integer value = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (value == null || value != mSensitivity) return false;
+        }
+        if (mExposureTimeNs > 0) {
+            Long value = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (value == null || !ParameterSweep.isClose(value, mExposureTimeNs)) return false;
+        }
+        if (mFrameDurationNs > 0) {
+            // Stretched to fit the exposure if that one is longer
+            long target = Math.max(mFrameDurationNs, mExposureTimeNs);
+            Long value = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            if (value == null || !ParameterSweep.isClose(value, target)) return false;
+        }
+        if (mFpsRange != null) {
+            Range<Integer> value = result.get(CaptureResult.CONTROL_AE_TARGET_FPS_RANGE);
+            if (value == null || !value.equals(mFpsRange)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called for every completed capture after the update was submitted.
+     *
+     * @return true when the update is done (applied or given up)
+     */
+    boolean onCaptureCompleted(CaptureRequest request, TotalCaptureResult result) {
+        mFrames++;
+        if (!isNewRequest(request)) {
+            return false;
+        }
+        double elapsedMs = (System.nanoTime() - mSubmitNs) / 1000000.0;
+        if (mRequestFrames < 0) {
+            mRequestFrames = mFrames;
+            mRequestMs = elapsedMs;
+        }
+        mNewRequestFrames++;
+        boolean done = false;
+        if (valuesApplied(result)) {
+            mAppliedFrames = mFrames;
+            mAppliedMs = elapsedMs;
+            done = true;
+        } else if (mNewRequestFrames >= MAX_APPLY_FRAMES) {
+            Log.w(TAG, "New values not reported after " + mNewRequestFrames + " frames");
+            done = true;
+        }
+        if (done) {
+            Log.d(TAG, toString());
+            if (mListener != null) {
+                mListener.onParameterUpdate(this);
+            }
+        }
+        return done;
+    }
+
+    public boolean isApplied() {
+        return mAppliedFrames >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("parameter_update { request_frames: %d request_ms: %.2f applied_frames: %d applied_ms: %.2f failed: %b }",
+                mRequestFrames, mRequestMs, mAppliedFrames, mAppliedMs, mFailed);
+    }
+}
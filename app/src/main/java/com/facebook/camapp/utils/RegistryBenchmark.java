@@ -0,0 +1,158 @@
+package com.facebook.camapp.utils;
+
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Contention between output hot-plugging and rendering in an OutputMultiplier.
+ * <p>
+ * Measures the renderer frame time with a fixed set of outputs, then again while another
+ * thread keeps adding and removing small extra outputs, and times every add and remove. With
+ * a lock-free renderer the frame time should not move, and a remove should cost at most the
+ * frame in flight. Run it on a streaming multiplier, at 60 fps or more to make frame time
+ * hiccups visible.
+ */
+public class RegistryBenchmark {
+    private static final String TAG = "camapp.registry";
+    // Extra outputs alive at the same time during the churn phase
+    final static int MAX_EXTRA_OUTPUTS = 4;
+    final static int OUTPUT_WIDTH = 64;
+    final static int OUTPUT_HEIGHT = 64;
+    // Pause between two add or remove operations, about one frame at 60 fps
+    final static long CHURN_PERIOD_MS = 16;
+
+    final OutputMultiplier mMultiplier;
+    final String mName;
+    final LatencyHistogram mIdleFrameTime = new LatencyHistogram("frame.idle");
+    final LatencyHistogram mChurnFrameTime = new LatencyHistogram("frame.churn");
+    final LatencyHistogram mAdd = new LatencyHistogram("add");
+    final LatencyHistogram mRemove = new LatencyHistogram("remove");
+    long mIdleMs = 0;
+    long mChurnMs = 0;
+
+    public RegistryBenchmark(OutputMultiplier multiplier, String name) {
+        mMultiplier = multiplier;
+        mName = name;
+    }
+
+    /**
+     * Runs both phases, blocking. Call once the multiplier draws frames.
+     */
+    public void run(long phaseMs) {
+        Log.d(TAG, mName + ": idle phase, " + mMultiplier.getOutputCount() + " outputs");
+        long startMs = System.currentTimeMillis();
+        mMultiplier.setFrameTimeHistogram(mIdleFrameTime);
+        sleep(phaseMs);
+        mIdleMs = System.currentTimeMillis() - startMs;
+
+        Log.d(TAG, mName + ": churn phase");
+        // The extra outputs are ImageReaders that drop what they get, so they never
+        // stall the renderer on a full queue
+        HandlerThread readerThread = new HandlerThread("registry.readers");
+        readerThread.start();
+        Handler readerHandler = new Handler(readerThread.getLooper());
+        ArrayDeque<ImageReader> readers = new ArrayDeque<>();
+        ArrayDeque<FrameswapControl> outputs = new ArrayDeque<>();
+        startMs = System.currentTimeMillis();
+        mMultiplier.setFrameTimeHistogram(mChurnFrameTime);
+        while (System.currentTimeMillis() - startMs < phaseMs) {
+            if (outputs.size() < MAX_EXTRA_OUTPUTS) {
+                ImageReader reader = newReader(readerHandler);
+                long addNs = System.nanoTime();
+                FrameswapControl output = mMultiplier.addSurface(reader.getSurface());
+                mAdd.recordNs(System.nanoTime() - addNs);
+                readers.add(reader);
+                outputs.add(output);
+            } else {
+                removeOldest(readers, outputs);
+            }
+            sleep(CHURN_PERIOD_MS);
+        }
+        mMultiplier.setFrameTimeHistogram(null);
+        mChurnMs = System.currentTimeMillis() - startMs;
+        while (!outputs.isEmpty()) {
+            removeOldest(readers, outputs);
+        }
+        readerThread.quitSafely();
+        Log.d(TAG, toString());
+    }
+
+    private ImageReader newReader(Handler handler) {
+        ImageReader reader = ImageReader.newInstance(OUTPUT_WIDTH, OUTPUT_HEIGHT, PixelFormat.RGBA_8888, 2);
+        reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                try {
+                    Image image = reader.acquireLatestImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                } catch (IllegalStateException e) {
+                    // Closed meanwhile
+                }
+            }
+        }, handler);
+        return reader;
+    }
+
+    private void removeOldest(ArrayDeque<ImageReader> readers, ArrayDeque<FrameswapControl> outputs) {
+        FrameswapControl output = outputs.poll();
+        long removeNs = System.nanoTime();
+        mMultiplier.removeFrameSwapControl(output);
+        mRemove.recordNs(System.nanoTime() - removeNs);
+        // Not drawn anymore. Threaded outputs were released by their own thread, joined by
+        // removeFrameSwapControl().
+        if (!mMultiplier.isThreadedOutputs()) {
+            output.release();
+        }
+        readers.poll().close();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double getFps(LatencyHistogram frameTime, long durationMs) {
+        return (durationMs > 0) ? frameTime.getCount() * 1000.0 / durationMs : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("registry_benchmark {\n");
+        str.append("  name: " + mName + "\n");
+        str.append(String.format("  idle_fps: %.2f\n", getFps(mIdleFrameTime, mIdleMs)));
+        str.append(String.format("  churn_fps: %.2f\n", getFps(mChurnFrameTime, mChurnMs)));
+        str.append("  adds: " + mAdd.getCount() + "\n");
+        str.append("  removes: " + mRemove.getCount() + "\n");
+        str.append("}\n");
+        str.append(mIdleFrameTime.toString());
+        str.append(mChurnFrameTime.toString());
+        str.append(mAdd.toString());
+        str.append(mRemove.toString());
+        return str.toString();
+    }
+
+    public void writeResults(String path) {
+        try {
+            FileWriter writer = new FileWriter(path);
+            writer.write(toString());
+            writer.flush();
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
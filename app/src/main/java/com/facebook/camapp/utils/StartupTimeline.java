@@ -0,0 +1,139 @@
+package com.facebook.camapp.utils;
+
+import android.util.Log;
+
+import java.util.Vector;
+import java.util.concurrent.Executor;
+
+/**
+ * Records when each stage of the startup pipeline is reached and lets the next step of the
+ * pipeline be chained on it instead of polling for it.
+ * <p>
+ * The timestamps give a time-to-first-frame breakdown, relative to the creation of the
+ * timeline.
+ */
+public class StartupTimeline {
+    private static final String TAG = "camapp.startup";
+
+    public enum Stage {
+        CREATED,
+        PERMISSION_GRANTED,
+        EGL_READY,
+        INPUT_SURFACE_READY,
+        CAMERA_OPENED,
+        SESSION_CONFIGURED,
+        FIRST_FRAME
+    }
+
+    private final String mId;
+    private final long[] mTimestampsNs = new long[Stage.values().length];
+    private final Vector<PendingAction> mPending = new Vector<>();
+
+    private class PendingAction {
+        Stage mStage;
+        Executor mExecutor;
+        Runnable mAction;
+
+        PendingAction(Stage stage, Executor executor, Runnable action) {
+            mStage = stage;
+            mExecutor = executor;
+            mAction = action;
+        }
+    }
+
+    public StartupTimeline(String id) {
+        mId = id;
+        mark(Stage.CREATED);
+    }
+
+    /**
+     * Marks a stage as reached. Only the first mark of a stage is recorded.
+     *
+     * @return true if this call reached the stage
+     */
+    public boolean mark(Stage stage) {
+        Vector<PendingAction> ready = new Vector<>();
+        synchronized (this) {
+            if (mTimestampsNs[stage.ordinal()] != 0) {
+                return false;
+            }
+            mTimestampsNs[stage.ordinal()] = System.nanoTime();
+            for (PendingAction pending : mPending) {
+                if (pending.mStage == stage) {
+                    ready.add(pending);
+                }
+            }
+            mPending.removeAll(ready);
+        }
+        Log.d(TAG, mId + " " + stage + ": " + getElapsedMs(stage) + " ms");
+        for (PendingAction pending : ready) {
+            pending.mExecutor.execute(pending.mAction);
+        }
+        return true;
+    }
+
+    /**
+     * Runs action on executor once stage has been reached (right away if it already was).
+     */
+    public void onStage(Stage stage, Executor executor, Runnable action) {
+        synchronized (this) {
+            if (mTimestampsNs[stage.ordinal()] == 0) {
+                mPending.add(new PendingAction(stage, executor, action));
+                return;
+            }
+        }
+        executor.execute(action);
+    }
+
+    public synchronized boolean isReached(Stage stage) {
+        return mTimestampsNs[stage.ordinal()] != 0;
+    }
+
+    public synchronized long getTimestampNs(Stage stage) {
+        return mTimestampsNs[stage.ordinal()];
+    }
+
+    /**
+     * Returns the time from creation until stage was reached, or -1 if it has not been reached.
+     */
+    public synchronized double getElapsedMs(Stage stage) {
+        long ts = mTimestampsNs[stage.ordinal()];
+        if (ts == 0) {
+            return -1;
+        }
+        return (ts - mTimestampsNs[Stage.CREATED.ordinal()]) / 1000000.0;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("startup_timeline {\n");
+        str.append("  id: " + mId + "\n");
+        // Stages are printed in the order they were reached
+        Vector<Stage> stages = new Vector<>();
+        for (Stage stage : Stage.values()) {
+            if (mTimestampsNs[stage.ordinal()] == 0) {
+                continue;
+            }
+            int pos = stages.size();
+            while (pos > 0 && mTimestampsNs[stages.get(pos - 1).ordinal()] > mTimestampsNs[stage.ordinal()]) {
+                pos--;
+            }
+            stages.add(pos, stage);
+        }
+        long previous = mTimestampsNs[Stage.CREATED.ordinal()];
+        for (Stage stage : stages) {
+            long ts = mTimestampsNs[stage.ordinal()];
+            str.append(String.format("  %s: %.2f ms (+%.2f ms)\n", stage.name().toLowerCase(),
+                    (ts - mTimestampsNs[Stage.CREATED.ordinal()]) / 1000000.0,
+                    (ts - previous) / 1000000.0));
+            previous = ts;
+        }
+        str.append("}");
+        return str.toString();
+    }
+}
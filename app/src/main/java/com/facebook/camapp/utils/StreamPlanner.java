@@ -0,0 +1,410 @@
+package com.facebook.camapp.utils;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.media.ImageReader;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+
+/**
+ * Picks format, size and frame rate for a set of requested outputs before any session is
+ * created.
+ * <p>
+ * Candidates come from the StreamConfigurationMap, as kept by CameraCharacteristicsCache, and
+ * are ranked by throughput (pixels x reachable fps, using getOutputMinFrameDuration and
+ * getOutputStallDuration), preferring the ones that reach the target fps. A single output
+ * is valid at any size the map lists. A combination is valid if it fits one of the
+ * SCALER_MANDATORY_STREAM_COMBINATIONS, or if the camera says so through
+ * isSessionConfigurationSupported. Both need API 29. Without an open device the best
+ * ranked combination is returned unverified when it is not mandatory; only a session
+ * query saying no rejects it.
+ */
+public class StreamPlanner {
+    private static final String TAG = "camapp.planner";
+    // Combinations looked at, best ranked outputs first
+    final static int MAX_COMBINATIONS = 4096;
+    // Session queries go through the camera service, stop after this many
+    final static int MAX_SESSION_CHECKS = 16;
+
+    public enum Verification {
+        NONE,
+        STREAM_MAP,     // single output, listed in the stream configuration map
+        MANDATORY,      // part of a mandatory stream combination
+        SESSION_QUERY   // accepted by isSessionConfigurationSupported
+    }
+
+    /**
+     * A requested output. ImageFormat.PRIVATE stands for a SurfaceTexture (preview/GL) target.
+     */
+    public static class Output {
+        final int[] mFormats;
+        final Size mMaxSize;
+        final float mTargetFps;
+
+        // Planned values
+        public int mFormat = -1;
+        public Size mSize = null;
+        public long mMinFrameDurationNs = 0;
+        public long mStallDurationNs = 0;
+
+        /**
+         * @param formats   acceptable formats
+         * @param maxSize   largest acceptable size, null for any
+         * @param targetFps fps wanted, 0 for as fast as possible
+         */
+        public Output(int[] formats, Size maxSize, float targetFps) {
+            mFormats = formats;
+            mMaxSize = maxSize;
+            mTargetFps = targetFps;
+        }
+
+        public static Output preview(Size maxSize, float targetFps) {
+            return new Output(new int[]{ImageFormat.PRIVATE}, maxSize, targetFps);
+        }
+
+        @Override
+        public String toString() {
+            return "output { format: " + mFormat + " size: " + mSize +
+                    " min_frame_duration_ns: " + mMinFrameDurationNs +
+                    " stall_duration_ns: " + mStallDurationNs + " }";
+        }
+    }
+
+    static class Candidate {
+        int mFormat;
+        Size mSize;
+        long mMinFrameDurationNs;
+        long mStallDurationNs;
+        boolean mReachesTarget;
+        double mThroughput;
+    }
+
+    final CameraCharacteristicsCache.Entry mCharacteristics;
+    CameraDevice mDevice = null;
+
+    float mPlannedFps = 0;
+    Verification mVerification = Verification.NONE;
+
+    public StreamPlanner(CameraCharacteristicsCache.Entry characteristics) {
+        mCharacteristics = characteristics;
+    }
+
+    /**
+     * An open device lets the planner accept combinations outside the mandatory list.
+     */
+    public void setDevice(CameraDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Sizes of format, null if the camera cannot output it. PRIVATE are the SurfaceTexture ones.
+     */
+    public Size[] getOutputSizes(int format) {
+        int i = mCharacteristics.getStreamIndex(format);
+        return (i >= 0) ? mCharacteristics.mStreamSizes[i] : null;
+    }
+
+    private long getMinFrameDuration(int format, Size size) {
+        return getDuration(mCharacteristics.mMinFrameDurations, format, size);
+    }
+
+    private long getStallDuration(int format, Size size) {
+        return getDuration(mCharacteristics.mStallDurations, format, size);
+    }
+
+    private long getDuration(long[][] durations, int format, Size size) {
+        int i = mCharacteristics.getStreamIndex(format);
+        if (i < 0) {
+            return 0;
+        }
+        Size[] sizes = mCharacteristics.mStreamSizes[i];
+        for (int j = 0; j < sizes.length; j++) {
+            if (sizes[j].equals(size)) {
+                return durations[i][j];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the highest fps a single output of format and size can run at, taking the
+     * stall duration into account.
+     */
+    public float getMaxFps(int format, Size size) {
+        if (getOutputSizes(format) == null) {
+            return 0;
+        }
+        return getFps(getMinFrameDuration(format, size) + getStallDuration(format, size), 0);
+    }
+
+    private static float getFps(long frameDurationNs, float targetFps) {
+        float fps = (frameDurationNs > 0) ? 1000000000.0f / frameDurationNs : Float.MAX_VALUE;
+        return (targetFps > 0) ? Math.min(fps, targetFps) : fps;
+    }
+
+    private List<Candidate> getCandidates(Output output) {
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        for (int format : output.mFormats) {
+            Size[] sizes = getOutputSizes(format);
+            if (sizes == null) {
+                continue;
+            }
+            for (Size size : sizes) {
+                if (output.mMaxSize != null &&
+                        (size.getWidth() > output.mMaxSize.getWidth() || size.getHeight() > output.mMaxSize.getHeight())) {
+                    continue;
+                }
+                Candidate candidate = new Candidate();
+                candidate.mFormat = format;
+                candidate.mSize = size;
+                candidate.mMinFrameDurationNs = getMinFrameDuration(format, size);
+                candidate.mStallDurationNs = getStallDuration(format, size);
+                long duration = candidate.mMinFrameDurationNs + candidate.mStallDurationNs;
+                float fps = getFps(duration, output.mTargetFps);
+                candidate.mReachesTarget = output.mTargetFps <= 0 || fps >= output.mTargetFps;
+                candidate.mThroughput = (double) size.getWidth() * size.getHeight() * fps;
+                candidates.add(candidate);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                if (a.mReachesTarget != b.mReachesTarget) {
+                    return a.mReachesTarget ? -1 : 1;
+                }
+                return Double.compare(b.mThroughput, a.mThroughput);
+            }
+        });
+        return candidates;
+    }
+
+    // The session runs at the pace of the slowest output, stalls add up on top
+    private float getSessionFps(List<Output> outputs, Candidate[] combination) {
+        long maxDuration = 0;
+        long maxStall = 0;
+        float targetFps = 0;
+        for (int i = 0; i < combination.length; i++) {
+            maxDuration = Math.max(maxDuration, combination[i].mMinFrameDurationNs);
+            maxStall = Math.max(maxStall, combination[i].mStallDurationNs);
+            float target = outputs.get(i).mTargetFps;
+            if (target > 0) {
+                targetFps = (targetFps > 0) ? Math.min(targetFps, target) : target;
+            }
+        }
+        return getFps(maxDuration + maxStall, targetFps);
+    }
+
+    private double getScore(List<Output> outputs, Candidate[] combination) {
+        float fps = getSessionFps(outputs, combination);
+        double score = 0;
+        for (Candidate candidate : combination) {
+            score += (double) candidate.mSize.getWidth() * candidate.mSize.getHeight() * fps;
+        }
+        // Reaching the target fps matters more than pixels
+        for (int i = 0; i < combination.length; i++) {
+            float target = outputs.get(i).mTargetFps;
+            if (target > 0 && fps < target) {
+                score /= 1000;
+            }
+        }
+        return score;
+    }
+
+    private static boolean fitsStreams(Candidate[] combination, int index, int[] formats, Size[][] sizes, boolean[] used) {
+        if (index == combination.length) {
+            return true;
+        }
+        for (int j = 0; j < formats.length; j++) {
+            if (used[j] || formats[j] != combination[index].mFormat ||
+                    !Arrays.asList(sizes[j]).contains(combination[index].mSize)) {
+                continue;
+            }
+            used[j] = true;
+            if (fitsStreams(combination, index + 1, formats, sizes, used)) {
+                return true;
+            }
+            used[j] = false;
+        }
+        return false;
+    }
+
+    private boolean isMandatory(Candidate[] combination) {
+        int[][] formats = mCharacteristics.mMandatoryFormats;
+        if (formats == null) {
+            return false;
+        }
+        for (int i = 0; i < formats.length; i++) {
+            if (formats[i].length < combination.length) {
+                continue;
+            }
+            if (fitsStreams(combination, 0, formats[i], mCharacteristics.mMandatorySizes[i], new boolean[formats[i].length])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSessionSupported(Candidate[] combination) {
+        if (mDevice == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return false;
+        }
+        Vector<OutputConfiguration> configs = new Vector<>();
+        Vector<ImageReader> readers = new Vector<>();
+        try {
+            for (Candidate candidate : combination) {
+                if (candidate.mFormat == ImageFormat.PRIVATE) {
+                    configs.add(new OutputConfiguration(candidate.mSize, SurfaceTexture.class));
+                } else {
+                    ImageReader reader = ImageReader.newInstance(candidate.mSize.getWidth(),
+                            candidate.mSize.getHeight(), candidate.mFormat, 1);
+                    readers.add(reader);
+                    configs.add(new OutputConfiguration(reader.getSurface()));
+                }
+            }
+            SessionConfiguration config = new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+                    configs,
+                    new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            command.run();
+                        }
+                    },
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession session) {
+                        }
+
+                        @Override
+                        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                        }
+                    });
+            return mDevice.isSessionConfigurationSupported(config);
+        } catch (CameraAccessException | UnsupportedOperationException | IllegalArgumentException e) {
+            Log.w(TAG, "Session query failed: " + e);
+            return false;
+        } finally {
+            for (ImageReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Fills in format, size and frame durations of every output.
+     *
+     * @return false if no valid combination was found
+     */
+    public boolean plan(List<Output> outputs) {
+        mVerification = Verification.NONE;
+        if (mCharacteristics.mStreamFormats.length == 0 || outputs.isEmpty()) {
+            return false;
+        }
+        int count = outputs.size();
+        List<List<Candidate>> candidates = new ArrayList<>(count);
+        for (Output output : outputs) {
+            List<Candidate> list = getCandidates(output);
+            if (list.isEmpty()) {
+                Log.e(TAG, "No size for " + output);
+                return false;
+            }
+            candidates.add(list);
+        }
+
+        // Walk the combinations, best ranked candidates first
+        ArrayList<Candidate[]> combinations = new ArrayList<>();
+        int[] index = new int[count];
+        while (combinations.size() < MAX_COMBINATIONS) {
+            Candidate[] combination = new Candidate[count];
+            for (int i = 0; i < count; i++) {
+                combination[i] = candidates.get(i).get(index[i]);
+            }
+            combinations.add(combination);
+            int i = count - 1;
+            while (i >= 0 && ++index[i] == candidates.get(i).size()) {
+                index[i] = 0;
+                i--;
+            }
+            if (i < 0) {
+                break;
+            }
+        }
+        final double[] scores = new double[combinations.size()];
+        Integer[] order = new Integer[combinations.size()];
+        for (int i = 0; i < order.length; i++) {
+            scores[i] = getScore(outputs, combinations.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+
+        Candidate[] best = null;
+        int sessionChecks = 0;
+        for (Integer i : order) {
+            Candidate[] combination = combinations.get(i);
+            if (count == 1) {
+                // Every size of the map works on its own
+                best = combination;
+                mVerification = isMandatory(combination) ? Verification.MANDATORY : Verification.STREAM_MAP;
+                break;
+            }
+            if (isMandatory(combination)) {
+                best = combination;
+                mVerification = Verification.MANDATORY;
+                break;
+            }
+            if (sessionChecks < MAX_SESSION_CHECKS && mDevice != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                sessionChecks++;
+                if (isSessionSupported(combination)) {
+                    best = combination;
+                    mVerification = Verification.SESSION_QUERY;
+                    break;
+                }
+            }
+        }
+        if (best == null) {
+            if (sessionChecks > 0) {
+                Log.e(TAG, "No supported stream combination");
+                return false;
+            }
+            // Not mandatory does not mean not supported, only the device can tell
+            best = combinations.get(order[0]);
+        }
+        for (int i = 0; i < count; i++) {
+            Output output = outputs.get(i);
+            output.mFormat = best[i].mFormat;
+            output.mSize = best[i].mSize;
+            output.mMinFrameDurationNs = best[i].mMinFrameDurationNs;
+            output.mStallDurationNs = best[i].mStallDurationNs;
+        }
+        mPlannedFps = getSessionFps(outputs, best);
+        Log.d(TAG, "Planned " + count + " outputs at " + mPlannedFps + " fps (" + mVerification + ")");
+        return true;
+    }
+
+    public float getPlannedFps() {
+        return mPlannedFps;
+    }
+
+    public Verification getVerification() {
+        return mVerification;
+    }
+}
@@ -23,6 +23,7 @@ import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
 import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
+import android.opengl.GLES20;
 import android.util.Log;
 import android.view.Surface;
 
@@ -47,6 +48,12 @@ public final class EglCore {
      */
     public static final int FLAG_TRY_GLES3 = 0x02;
 
+    /**
+     * Constructor flag: ask for a 10-bit RGBA 1010102 config, fall back to 8888 if not
+     * available.  Check the result with is10Bit().
+     */
+    public static final int FLAG_10BIT = 0x04;
+
     // Android-specific extension.
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
@@ -54,6 +61,9 @@ public final class EglCore {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLConfig mEGLConfig = null;
     private int mGlVersion = -1;
+    private boolean mIs10Bit = false;
+    // GL_EXTENSIONS of the context, read the first time it is current
+    private String mGlExtensions = null;
 
 
     /**
@@ -142,6 +152,19 @@ public final class EglCore {
      * @param version Must be 2 or 3.
      */
     private EGLConfig getConfig(int flags, int version) {
+        if ((flags & FLAG_10BIT) != 0) {
+            EGLConfig config = getConfig(flags, version, 10, 2);
+            if (config != null) {
+                mIs10Bit = true;
+                return config;
+            }
+            Log.w(TAG, "no RGBA1010102 / " + version + " EGLConfig, using RGBA8888");
+        }
+        mIs10Bit = false;
+        return getConfig(flags, version, 8, 8);
+    }
+
+    private EGLConfig getConfig(int flags, int version, int colorBits, int alphaBits) {
         int renderableType = EGL14.EGL_OPENGL_ES2_BIT;
         if (version >= 3) {
             renderableType |= EGLExt.EGL_OPENGL_ES3_BIT_KHR;
@@ -151,10 +174,10 @@ public final class EglCore {
         // doesn't really help.  It can also lead to a huge performance hit on glReadPixels()
         // when reading into a GL_RGBA buffer.
         int[] attribList = {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RED_SIZE, colorBits,
+                EGL14.EGL_GREEN_SIZE, colorBits,
+                EGL14.EGL_BLUE_SIZE, colorBits,
+                EGL14.EGL_ALPHA_SIZE, alphaBits,
                 //EGL14.EGL_DEPTH_SIZE, 16,
                 //EGL14.EGL_STENCIL_SIZE, 8,
                 EGL14.EGL_RENDERABLE_TYPE, renderableType,
@@ -168,10 +191,19 @@ public final class EglCore {
         EGLConfig[] configs = new EGLConfig[1];
         int[] numConfigs = new int[1];
         if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
-                numConfigs, 0)) {
-            Log.w(TAG, "unable to find RGB8888 / " + version + " EGLConfig");
+                numConfigs, 0) || numConfigs[0] == 0) {
+            Log.w(TAG, "unable to find RGB" + colorBits + colorBits + colorBits + alphaBits +
+                    " / " + version + " EGLConfig");
             return null;
         }
+        if (colorBits != 8) {
+            // The sizes are minimums, e.g. a 16-bit float config would match as well.
+            int[] value = new int[1];
+            EGL14.eglGetConfigAttrib(mEGLDisplay, configs[0], EGL14.EGL_RED_SIZE, value, 0);
+            if (value[0] != colorBits) {
+                return null;
+            }
+        }
         return configs[0];
     }
 
@@ -345,6 +377,43 @@ public final class EglCore {
         return mGlVersion;
     }
 
+    /**
+     * Returns true if the GL context has the extension, e.g. "GL_EXT_disjoint_timer_query".
+     * The context must be current.
+     */
+    public boolean hasGlExtension(String name) {
+        if (mGlExtensions == null) {
+            mGlExtensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        }
+        return hasExtension(mGlExtensions, name);
+    }
+
+    private static boolean hasExtension(String extensions, String name) {
+        if (extensions == null) {
+            return false;
+        }
+        for (String extension : extensions.split(" ")) {
+            if (extension.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the EGL context, e.g. to share it with the context of another thread.
+     */
+    public EGLContext getContext() {
+        return mEGLContext;
+    }
+
+    /**
+     * Returns true if the config has 10-bit color channels (see FLAG_10BIT).
+     */
+    public boolean is10Bit() {
+        return mIs10Bit;
+    }
+
     /**
      * Writes the current display, context, and surface to the log.
      */
@@ -80,7 +80,15 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
+        drawFrame(textureId, texMatrix, GlUtil.IDENTITY_MATRIX);
+    }
+
+    /**
+     * Draws the rect transformed by mvpMatrix (e.g. rotated or mirrored), texturing it with
+     * the specified texture object.
+     */
+    public void drawFrame(int textureId, float[] texMatrix, float[] mvpMatrix) {
+        mProgram.draw(mvpMatrix, mRectDrawable.getVertexArray(), 0,
                 mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
                 mRectDrawable.getVertexStride(),
                 texMatrix, mRectDrawable.getTexCoordArray(), textureId,